@@ -0,0 +1,66 @@
+package uk.clavier.chiplate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// raw headless throughput for every bundled rom. the score is frames, the executed counter
+// is instructions that actually ran: idle loops the table and jit cores skip don't count,
+// so that's the number to compare across cores
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CPUBenchmark {
+    @Param({
+        "BC_TEST", "BLITZ", "BRIX", "CAVE", "CONNECT4", "HIDDEN", "INVADERS", "MAZE",
+        "MERLIN", "MISSILE", "PONG", "PUZZLE", "REVERSI", "RUSH_HOUR", "SPLASH", "TANK",
+        "TEST", "TETRIS", "UFO", "VBRIX", "VERS", "WALL"
+    })
+    public String rom;
+
+    @Param({"SWITCH", "TABLE", "JIT"})
+    public String core;
+
+    // jmh reports this per second alongside the score
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Executed {
+        public long executed;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            this.executed = 0;
+        }
+    }
+
+    private CPU cpu;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        byte[] program = Files.readAllBytes(Paths.get(Roms.DIRECTORY, this.rom));
+
+        Memory ram = new Memory();
+        ram.loadProgram(program);
+
+        // fixed seed so every iteration runs the same path
+        this.cpu = new CPU(ram, new Display(new NullFrameSink()), true, 0);
+        this.cpu.setCore(Core.valueOf(this.core));
+    }
+
+    // one frame worth of cycles, same split as the emulator loop
+    @Benchmark
+    public void frame(Executed counter) {
+        long idle = this.cpu.getIdleCycles();
+
+        this.cpu.run(9);
+        this.cpu.doTimerTick();
+
+        counter.executed += 9 - (this.cpu.getIdleCycles() - idle);
+    }
+}
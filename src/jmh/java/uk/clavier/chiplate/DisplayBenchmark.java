@@ -0,0 +1,79 @@
+package uk.clavier.chiplate;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DisplayBenchmark {
+    // clearing one screen is a few tens of nanoseconds, far too short to time a call at a time,
+    // so each call works through a batch of screens and the score is per screen
+    private static final int SCREENS = 64;
+
+    @State(Scope.Thread)
+    public static class Sprite {
+        // 0 is byte aligned, 60 clips most of the sprite off the right edge
+        @Param({"0", "13", "60"})
+        public int x;
+
+        private Memory ram;
+        private Display display;
+
+        @Setup
+        public void setup() {
+            // font data lives at 0, good enough as a 15 row sprite
+            this.ram = new Memory();
+            this.display = new Display(new NullFrameSink());
+        }
+    }
+
+    // screens with every row lit, filled again inside the benchmark since clearing an
+    // already blank screen measures nothing
+    @State(Scope.Thread)
+    public static class Screens {
+        private long[] rows;
+        private Display[] displays;
+
+        @Setup
+        public void setup() {
+            this.rows = new long[32];
+            Arrays.fill(this.rows, 0x5555555555555555L);
+            this.displays = new Display[SCREENS];
+
+            for (int n = 0; n < SCREENS; ++n) {
+                this.displays[n] = new Display(new NullFrameSink());
+            }
+        }
+    }
+
+    // the full Dxyn cost for the tallest sprite, xor-ing twice keeps the screen from filling up
+    @Benchmark
+    public boolean drawSprite(Sprite sprite) {
+        sprite.display.drawSprite(sprite.ram, 0, sprite.x, 8, 15);
+        return sprite.display.drawSprite(sprite.ram, 0, sprite.x, 8, 15);
+    }
+
+    // just the refill, what to take off fillAndClear to get the cost of clear
+    @Benchmark
+    @OperationsPerInvocation(SCREENS)
+    public void fill(Screens screens) {
+        for (Display display : screens.displays) {
+            display.loadRows(screens.rows);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SCREENS)
+    public void fillAndClear(Screens screens) {
+        for (Display display : screens.displays) {
+            display.loadRows(screens.rows);
+            display.clear();
+        }
+    }
+}
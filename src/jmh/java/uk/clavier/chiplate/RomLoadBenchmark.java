@@ -0,0 +1,30 @@
+package uk.clavier.chiplate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// from file on disk to a cpu ready to run the first instruction
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RomLoadBenchmark {
+    @Param({"PONG", "TETRIS", "INVADERS"})
+    public String rom;
+
+    @Benchmark
+    public CPU load() throws IOException {
+        byte[] program = Files.readAllBytes(Paths.get(Roms.DIRECTORY, this.rom));
+
+        Memory ram = new Memory();
+        ram.loadProgram(program);
+
+        return new CPU(ram, new Display(new NullFrameSink()), true, 0);
+    }
+}
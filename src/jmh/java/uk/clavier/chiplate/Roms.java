@@ -0,0 +1,9 @@
+package uk.clavier.chiplate;
+
+// benchmarks run from the project root by default, override with -Dchiplate.programs=...
+final class Roms {
+    static final String DIRECTORY = System.getProperty("chiplate.programs", "programs");
+
+    private Roms() {
+    }
+}
@@ -1,10 +1,27 @@
 package uk.clavier.chiplate;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import org.lwjgl.PointerBuffer;
 import static org.lwjgl.system.MemoryUtil.*;
@@ -14,98 +31,310 @@ import static org.lwjgl.glfw.GLFW.*;
 public class App {
     final int SCALE_FACTOR = 16; 
 
-    public static final String ANSI_RESET = "\u001B[0m";
-    public static final String ANSI_BLACK = "\u001B[30m ";
-    public static final String ANSI_RED = "\u001B[31m";
-    public static final String ANSI_GREEN = "\u001B[32m";
-    public static final String ANSI_YELLOW = "\u001B[33m";
-    public static final String ANSI_BLUE = "\u001B[34m";
-    public static final String ANSI_PURPLE = "\u001B[35m";
-    public static final String ANSI_CYAN = "\u001B[36m";
-    public static final String ANSI_WHITE = "\u001B[37m";
+    // five minutes at 60fps, capped at 16MB
+    static final int REWIND_FRAMES = 60 * 60 * 5;
+    static final int REWIND_BYTES = 16 * 1024 * 1024;
 
+    // bundled into the jar
+    static final String SPLASH = "programs/SPLASH";
+
+    private Memory ram;
     private Display display;
     private CPU cpu;
     private Renderer renderer;
+    private AudioSink audio;
+    private boolean mute;
     private long window;
-    private boolean debug;
-    private HashMap<Integer, Integer> keybindings;
-    private boolean shouldBreak;
+    // glfw keycode -> chip-8 key, -1 for unbound
+    private int[] keybindings;
+    private int cpuHz;
+    private int presentHz;
+    private double speed;
+    private Core core;
+    private String loadStatePath;
+    private String saveStatePath;
+    private String recordPath;
+    private long seed;
+    private byte[] program;
+    private Metrics metrics;
+    private String profileDir;
+    private String romPath;
+    private boolean firstFrame;
+    private final AtomicReference<String> pendingRom;
+    private Profiler profiler;
+    private InputLog log;
+    private String tracePath;
+    private Tracer tracer;
+    private TripleBuffer frames;
+    private Thread emulationThread;
+    private volatile Scheduler scheduler;
+    private volatile boolean emulating;
+
+    // whatever stopped the emulation thread, rethrown on the main thread once the window's closed
+    private volatile RuntimeException fault;
 
     private App() throws IOException {
-        this.shouldBreak = false;
-        this.keybindings = new HashMap<Integer, Integer>();
-
-        keybindings.put(GLFW_KEY_1, 0x1);
-        keybindings.put(GLFW_KEY_2, 0x2);
-        keybindings.put(GLFW_KEY_3, 0x3);
-        keybindings.put(GLFW_KEY_4, 0xC);
-
-        keybindings.put(GLFW_KEY_Q, 0x4);
-        keybindings.put(GLFW_KEY_W, 0x5);
-        keybindings.put(GLFW_KEY_E, 0x6);
-        keybindings.put(GLFW_KEY_R, 0xD);
+        this.cpuHz = Scheduler.DEFAULT_CPU_HZ;
+        this.presentHz = Scheduler.DEFAULT_PRESENT_HZ;
+        this.speed = 1;
+        this.core = Core.TABLE;
+        this.seed = System.currentTimeMillis();
+        this.pendingRom = new AtomicReference<>();
+        this.keybindings = new int[GLFW_KEY_LAST + 1];
+        Arrays.fill(this.keybindings, -1);
+
+        this.keybindings[GLFW_KEY_1] = 0x1;
+        this.keybindings[GLFW_KEY_2] = 0x2;
+        this.keybindings[GLFW_KEY_3] = 0x3;
+        this.keybindings[GLFW_KEY_4] = 0xC;
+
+        this.keybindings[GLFW_KEY_Q] = 0x4;
+        this.keybindings[GLFW_KEY_W] = 0x5;
+        this.keybindings[GLFW_KEY_E] = 0x6;
+        this.keybindings[GLFW_KEY_R] = 0xD;
     
-        keybindings.put(GLFW_KEY_A, 0x7);
-        keybindings.put(GLFW_KEY_S, 0x8);
-        keybindings.put(GLFW_KEY_D, 0x9);
-        keybindings.put(GLFW_KEY_F, 0xE);
+        this.keybindings[GLFW_KEY_A] = 0x7;
+        this.keybindings[GLFW_KEY_S] = 0x8;
+        this.keybindings[GLFW_KEY_D] = 0x9;
+        this.keybindings[GLFW_KEY_F] = 0xE;
     
-        keybindings.put(GLFW_KEY_Z, 0xA);
-        keybindings.put(GLFW_KEY_X, 0x0);
-        keybindings.put(GLFW_KEY_C, 0xB);
-        keybindings.put(GLFW_KEY_V, 0xF);
+        this.keybindings[GLFW_KEY_Z] = 0xA;
+        this.keybindings[GLFW_KEY_X] = 0x0;
+        this.keybindings[GLFW_KEY_C] = 0xB;
+        this.keybindings[GLFW_KEY_V] = 0xF;
     }
 
     private Memory loadProgram(String path) throws IOException {
-        byte[] program = Files.readAllBytes(Paths.get(path));
+        return this.loadProgram(path, Files.readAllBytes(Paths.get(path)));
+    }
+
+    private Memory loadProgram(String path, byte[] program) {
+        this.program = program;
+        this.romPath = path;
 
         Memory ram = new Memory();
         ram.loadProgram(program);
         return ram;
     }
 
-    private int[] debugValues(int[] previousRegisters) {
-        int[] registers = this.cpu.dumpRegisters();
-        System.out.println(String.format("Next PC: %04x\tNext Opcode: %04x", this.cpu.dumpPC(), this.cpu.dumpOpcode()));
+    // emulation thread: runs the cpu on its own clock and publishes frames into the triple buffer
+    private void emulate() {
+        Scheduler scheduler = new Scheduler(this.cpu, this.display, this.cpuHz, this.presentHz);
+        scheduler.setSpeed(this.speed);
+        scheduler.setAudio(this.audio);
 
-        for (int i = 0; i < 16; ++i) {
-            // Highlight changed registers in red
-            if (registers[i] != previousRegisters[i]) {
-                System.out.println(ANSI_RED + String.format("v%01x: %02x\t", i, registers[i]) + ANSI_RESET);
-            } else {
-                System.out.println(String.format("v%01x: %02x\t", i, registers[i]));
+        // rewinding would splice history the log can't describe, so no rewind while recording
+        if (this.recordPath == null) {
+            scheduler.setRewind(new RewindBuffer(REWIND_FRAMES, REWIND_BYTES, RewindBuffer.DEFAULT_KEYFRAME_INTERVAL));
+        }
+
+        if (this.metrics != null) {
+            Metrics.Stripe stripe = this.metrics.newStripe();
+            this.cpu.setMetrics(stripe);
+            scheduler.setMetrics(stripe);
+        }
+
+        this.scheduler = scheduler;
+        this.beginRom(scheduler);
+
+        try {
+            while (this.emulating) {
+                String next = this.pendingRom.getAndSet(null);
+
+                if (next != null) {
+                    this.switchRom(next, scheduler);
+                }
+
+                scheduler.update(System.nanoTime());
+                scheduler.waitForNext();
+            }
+        } catch (RuntimeException e) {
+            // a fault or a bug: stop emulating and have the render loop close the window,
+            // the main thread reports it after tearing everything down properly
+            this.fault = e;
+            this.emulating = false;
+            Renderer.wake();
+        }
+
+        this.audio.setBeeping(false);
+        this.endRom(scheduler);
+    }
+
+    // per rom extras, the profile and input log each cover one rom
+    private void beginRom(Scheduler scheduler) {
+        if (this.profileDir != null) {
+            this.profiler = new Profiler();
+            this.cpu.setProfiler(this.profiler);
+        }
+
+        if (this.recordPath != null) {
+            this.log = new InputLog(this.seed, this.cpuHz, this.program);
+            scheduler.setRecorder(this.log);
+        }
+
+        if (this.tracePath != null) {
+            this.tracer = this.openTrace();
+        }
+    }
+
+    private void endRom(Scheduler scheduler) {
+        if (this.profiler != null) {
+            this.cpu.setProfiler(null);
+            this.writeProfile(this.profiler);
+            this.profiler = null;
+        }
+
+        if (this.log != null) {
+            this.log.finish(scheduler.getCycles(), this.cpu);
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.recordPath)))) {
+                this.log.write(out);
+            } catch (IOException e) {
+                System.out.println("Error writing input log: " + e.getMessage());
             }
+
+            this.log = null;
         }
 
-        System.out.println("");
+        if (this.tracer != null) {
+            this.closeTrace(this.tracer);
+            this.tracer = null;
+        }
+    }
 
-        return registers.clone();
+    private Tracer openTrace() {
+        try {
+            Tracer tracer = new Tracer(Paths.get(this.tracePath));
+            this.cpu.setTracer(tracer);
+            return tracer;
+        } catch (IOException e) {
+            System.out.println("Error opening trace: " + e.getMessage());
+            return null;
+        }
     }
 
+    private void closeTrace(Tracer tracer) {
+        this.cpu.setTracer(null);
+
+        try {
+            tracer.close();
+            System.out.println(String.format("%s: %d instructions traced to %s", this.romPath, tracer.getRecords(), this.tracePath));
+        } catch (IOException e) {
+            System.out.println("Error writing trace: " + e.getMessage());
+        }
+    }
+
+    // on the emulation thread, between updates: resets the machine in place with the
+    // new program, the window, gl objects, threads and buffers all carry on as they are.
+    // a rom that won't load leaves the current one running
+    private void switchRom(String path, Scheduler scheduler) {
+        byte[] program;
+
+        try {
+            program = Files.readAllBytes(Paths.get(path));
+        } catch (IOException e) {
+            System.out.println("Couldn't load " + path + ": " + e.getMessage());
+            return;
+        }
+
+        if (program.length > Memory.SIZE - 0x200) {
+            System.out.println("Couldn't load " + path + ": too big for chip-8 memory");
+            return;
+        }
+
+        this.endRom(scheduler);
+
+        this.cpu.reset(program, this.seed);
+        this.audio.setBeeping(false);
+        scheduler.restart(System.nanoTime());
+        this.program = program;
+        this.romPath = path;
+
+        this.beginRom(scheduler);
+    }
+
+    // swaps to another rom without stopping anything, safe to call from any thread.
+    // if several come in before the emulation thread gets to them the last one wins
+    public void switchRom(String path) {
+        this.pendingRom.set(path);
+        LockSupport.unpark(this.emulationThread);
+    }
+
+    // writes <rom>.txt (report with disassembly) and <rom>.folded (flame graph stacks) into the profile dir
+    private void writeProfile(Profiler profiler) {
+        String name = Paths.get(this.romPath).getFileName().toString();
+        Path dir = Paths.get(this.profileDir);
+
+        try {
+            Files.createDirectories(dir);
+
+            try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(dir.resolve(name + ".txt")))) {
+                profiler.report(this.ram, this.romPath, out);
+            }
+
+            try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(dir.resolve(name + ".folded")))) {
+                profiler.writeCollapsed(out);
+            }
+
+            System.out.println(String.format("%s: profile of %d instructions written to %s", this.romPath, profiler.getTotal(), dir.resolve(name + ".txt")));
+        } catch (IOException e) {
+            System.out.println("Error writing profile: " + e.getMessage());
+        }
+    }
+
+    // startup timing (and the class data sharing training run): how long from the jvm
+    // starting to the first frame actually on screen, then close
+    private void reportFirstFrame() {
+        long elapsed = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        System.out.println(String.format("First frame after %d ms", elapsed));
+
+        glfwSetWindowShouldClose(this.window, true);
+        this.firstFrame = false;
+    }
+
+    private void stopEmulation() {
+        if (this.emulationThread == null) {
+            return;
+        }
+
+        this.emulating = false;
+
+        // it may be parked waiting for a key
+        LockSupport.unpark(this.emulationThread);
+
+        try {
+            this.emulationThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        this.emulationThread = null;
+    }
+
+    // render thread (has to be the main thread for glfw): shows whatever frame
+    // the emulation thread published last, swap waits for vsync without holding up the cpu
     private void loop() {
-        // Define dummy values for debugging
-        int[] previousRegisters = new int[16];
-        Arrays.fill(previousRegisters, 0xFF);
-        
-        this.shouldBreak = false;
-
-        // stop running when it's time to close or if new file dropped
-        while (!glfwWindowShouldClose(this.window) && !this.shouldBreak) {
-            // update screen every cycle in debug mode
-            if (debug) {
-                previousRegisters = this.debugValues(previousRegisters);
-                this.cpu.cycle();
-            } else {
-                // for loop cycle for roughly correct(tm) clock speed
-                for (int i = 0; i < 9; ++i) {
-                    this.cpu.cycle();
+        this.emulating = true;
+        this.emulationThread = new Thread(this::emulate, "chiplate-emulation");
+        this.emulationThread.start();
+
+        // stop running when it's time to close, or when the emulation thread has died
+        while (!glfwWindowShouldClose(this.window) && this.emulating) {
+            long[] frame = this.frames.acquire();
+
+            if (frame != null) {
+                this.renderer.present(frame);
+
+                if (this.firstFrame) {
+                    this.reportFirstFrame();
                 }
+            } else {
+                // the emulation thread wakes us when it publishes, the timeout is just a backstop
+                this.renderer.waitEvents(0.1);
             }
-
-            this.cpu.doTimerTick();
-            this.display.render();
         }
+
+        this.stopEmulation();
     }
 
     public void launch() throws IOException {
@@ -114,22 +343,29 @@ public class App {
 
         // setup the input handler
         glfwSetKeyCallback(window, (win, key, scancode, action, mods) -> {
-            if (action == GLFW_RELEASE) {
-                if (key == GLFW_KEY_ESCAPE) {
-                    glfwSetWindowShouldClose(win, true);
-                } else if (this.keybindings.containsKey(key)) {
-                    // set keyup
-                    this.cpu.setKey(-1);
-                }
+            // hold backspace to rewind
+            if (key == GLFW_KEY_BACKSPACE && action != GLFW_REPEAT && this.scheduler != null) {
+                this.scheduler.setRewinding(action == GLFW_PRESS);
+            }
+
+            // hold tab to fast forward as fast as the host can go
+            if (key == GLFW_KEY_TAB && action != GLFW_REPEAT && this.scheduler != null) {
+                this.scheduler.setSpeed(action == GLFW_PRESS ? Scheduler.UNCAPPED : this.speed);
             }
 
-            if (action == GLFW_PRESS) {
-                Integer chipKey = this.keybindings.get(key);
+            if (action == GLFW_RELEASE && key == GLFW_KEY_ESCAPE) {
+                glfwSetWindowShouldClose(win, true);
+            }
+
+            // glfw reports keys it doesn't know as -1
+            int chipKey = key >= 0 && key <= GLFW_KEY_LAST ? this.keybindings[key] : -1;
 
-                // will be null if key doesn't exist
-                if (chipKey != null) {
-                    // translate key to chip8 input
-                    this.cpu.setKey(chipKey);
+            // translate key to chip8 input, the scheduler hands it to the cpu between cycles
+            if (chipKey != -1 && action != GLFW_REPEAT && this.scheduler != null) {
+                if (action == GLFW_PRESS) {
+                    this.scheduler.press(chipKey);
+                } else {
+                    this.scheduler.release(chipKey);
                 }
             }
         });
@@ -137,40 +373,591 @@ public class App {
         // setup file drop handler
         glfwSetDropCallback(window, (win, count, paths) -> {
             if (count > 0) {
-                this.shouldBreak = true;
                 PointerBuffer nameBuffer = memPointerBuffer(paths, count);
-
-                try {
-                    this.run(memUTF8(memByteBufferNT1(nameBuffer.get(0))));
-                } catch (IOException e) {
-                    System.out.println("Error on file drop read");
-                    System.exit(1);
-                }
+                this.switchRom(memUTF8(memByteBufferNT1(nameBuffer.get(0))));
             }
         });
 
         this.renderer = new Renderer(window);
         this.renderer.init();
 
-        // TODO: Add to classpath
-        this.run("programs/SPLASH");
+        if (this.metrics != null) {
+            this.renderer.setMetrics(this.metrics.newStripe());
+        }
+
+        Beeper beeper = this.mute ? null : Beeper.open();
+        this.audio = beeper != null ? beeper : new NullAudioSink();
+
+        if (beeper == null && !this.mute) {
+            System.out.println("No audio device, carrying on without sound");
+        }
+
+        this.run(SPLASH, Resources.read(SPLASH));
+
+        if (beeper != null) {
+            beeper.close();
+        }
+
+        if (this.fault != null) {
+            throw this.fault;
+        }
     }
 
-    public void init(Memory ram) throws IOException {
-        this.display = new Display(this.renderer);
-        this.cpu = new CPU(ram, this.display, true);
+    // metrics, the profiler and the tracer all wrap the handler table, which the switch
+    // core never goes through. rather than have them quietly see nothing, use the table core
+    private Core coreFor(Core core) {
+        if (core == Core.SWITCH && (this.metrics != null || this.profileDir != null || this.tracePath != null)) {
+            System.out.println("--metrics, --profile and --trace go through the table core, running on that instead of switch");
+            return Core.TABLE;
+        }
+
+        return core;
     }
 
-    public void run(String path) throws IOException {
-        this.debug = false;
+    public void init(Memory ram, FrameSink sink) {
+        this.ram = ram;
+        this.display = new Display(sink);
+        this.cpu = new CPU(ram, this.display, true, this.seed);
+    }
 
-        this.init(loadProgram(path));
+    public void run(String path, byte[] program) {
+        this.frames = new TripleBuffer();
+        this.init(loadProgram(path, program), (rows) -> {
+            this.frames.present(rows);
+            Renderer.wake();
+        });
+        this.cpu.setCore(this.coreFor(this.core));
         this.loop();
 
         this.renderer.end();
     }
 
-    public static void main(String[] args) throws IOException {
-        new App().launch();
+    // runs a rom with no window at full host speed until either limit is hit
+    // (a limit of 0 means no limit), then reports and returns the throughput in
+    // instructions actually executed per second, cycles skipped as idle don't count
+    public double runHeadless(String path, long maxFrames, long maxCycles, Core core) throws IOException {
+        NullFrameSink sink = new NullFrameSink();
+        this.init(loadProgram(path), sink);
+        core = this.coreFor(core);
+        this.cpu.setCore(core);
+
+        Metrics.Stripe stripe = null;
+
+        if (this.metrics != null) {
+            stripe = this.metrics.newStripe();
+            this.cpu.setMetrics(stripe);
+        }
+
+        Profiler profiler = null;
+
+        if (this.profileDir != null) {
+            profiler = new Profiler();
+            this.cpu.setProfiler(profiler);
+        }
+
+        Tracer tracer = this.tracePath != null ? this.openTrace() : null;
+
+        if (this.loadStatePath != null) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.loadStatePath)))) {
+                this.cpu.restore(SaveState.read(in));
+            }
+        }
+
+        long cycles = 0;
+        long frames = 0;
+        long start = System.nanoTime();
+
+        try {
+            while ((maxFrames == 0 || frames < maxFrames) && (maxCycles == 0 || cycles < maxCycles)) {
+                // same 9 cycles per frame split as the windowed loop
+                int count = maxCycles == 0 ? 9 : (int) Math.min(9, maxCycles - cycles);
+                this.cpu.run(count);
+                cycles += count;
+
+                this.cpu.doTimerTick();
+                this.display.render();
+                frames++;
+
+                if (stripe != null) {
+                    stripe.tick();
+                }
+            }
+        } finally {
+            // a rom that faults still gets its profile, that's usually when it's wanted most
+            if (profiler != null) {
+                this.writeProfile(profiler);
+            }
+
+            // and so does its trace, the last records show how it got there
+            if (tracer != null) {
+                this.closeTrace(tracer);
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+        double seconds = elapsed / 1e9;
+        long executed = this.cpu.getStats().getExecuted();
+
+        System.out.println(String.format("%s [%s core]: %d cycles (%d executed), %d frames (%d changed) in %.3f s (%.0f instructions/s)",
+            path, core.name().toLowerCase(), cycles, executed, frames, sink.getFrames(), seconds, executed / seconds));
+        System.out.println("  " + this.cpu.getStats());
+
+        if (this.cpu.getJit() != null) {
+            System.out.println(String.format("  %d blocks translated, %d compiled to classes, %d flushes",
+                this.cpu.getJit().getTranslations(), this.cpu.getJit().getCompilations(), this.cpu.getJit().getFlushes()));
+        }
+
+        if (this.metrics != null) {
+            System.out.println("  " + this.metrics);
+        }
+
+        if (this.saveStatePath != null) {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.saveStatePath)))) {
+                this.cpu.save().write(out);
+            }
+        }
+
+        return executed / seconds;
+    }
+
+    // drives the rom from debugger commands on stdin
+    public void runDebugger(String path, Core core) throws IOException {
+        this.init(loadProgram(path), new NullFrameSink());
+
+        // breakpoints are checked through the handler table, which the switch core doesn't use
+        this.cpu.setCore(core == Core.SWITCH ? Core.TABLE : core);
+
+        DebugConsole console = new DebugConsole(this.cpu, this.ram, this.display, this.cpuHz, System.out);
+        console.run(new BufferedReader(new InputStreamReader(System.in)));
+    }
+
+    // plays an input log back against the rom as fast as the host can go and checks
+    // the machine ends up in exactly the state the recording finished in
+    public boolean runReplay(String path, String logPath, Core core) throws IOException {
+        InputLog log;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logPath)))) {
+            log = InputLog.read(in);
+        }
+
+        this.seed = log.getSeed();
+        this.init(loadProgram(path), new NullFrameSink());
+        this.cpu.setCore(core);
+
+        if (!log.matchesProgram(this.program)) {
+            System.out.println(String.format("%s: warning, %s was recorded against a different rom", path, logPath));
+        }
+
+        Scheduler scheduler = new Scheduler(this.cpu, this.display, log.getCpuHz(), Scheduler.DEFAULT_PRESENT_HZ);
+        long start = System.nanoTime();
+
+        for (int n = 0; n < log.getEvents(); ++n) {
+            scheduler.advanceTo(log.getCycle(n));
+            this.cpu.setKeys(log.getKeys(n));
+        }
+
+        scheduler.advanceTo(log.getEndCycle());
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long checksum = InputLog.checksum(this.cpu);
+        boolean matched = checksum == log.getChecksum();
+
+        System.out.println(String.format("%s: replayed %d events over %d cycles in %.3f s (%.1fx realtime), checksum %08x %s",
+            path, log.getEvents(), log.getEndCycle(), seconds, log.getEndCycle() / (double) log.getCpuHz() / seconds,
+            checksum, matched ? "matches" : "differs from recorded " + String.format("%08x", log.getChecksum())));
+
+        return matched;
+    }
+
+    // runs the same rom on every core and prints the speedup over the original switch core,
+    // each gets a throwaway warmup run first so the jvm has settled. the switch core never
+    // skips idle loops, so speeds are compared in instructions executed, not cycles covered
+    public void compareCores(String path, long maxFrames, long maxCycles) throws IOException {
+        double baseline = 0;
+
+        for (Core core : Core.values()) {
+            this.runHeadless(path, maxFrames, maxCycles, core);
+            double speed = this.runHeadless(path, maxFrames, maxCycles, core);
+
+            if (core == Core.SWITCH) {
+                baseline = speed;
+            } else {
+                System.out.println(String.format("%s core speedup: %.2fx", core.name().toLowerCase(), speed / baseline));
+            }
+        }
+    }
+
+    // differential test: runs the table core and the jit side by side from the same seed,
+    // with the same made up key presses, and checks they agree on registers, I, pc, the stack,
+    // the timers and the framebuffer after every block the jit runs
+    public boolean runDifferential(String path, long maxFrames) throws IOException {
+        byte[] program = Files.readAllBytes(Paths.get(path));
+
+        Memory interpRam = new Memory();
+        interpRam.loadProgram(program);
+        Display interpDisplay = new Display(new NullFrameSink());
+        CPU interp = new CPU(interpRam, interpDisplay, true, this.seed);
+        interp.setCore(Core.TABLE);
+
+        Memory jitRam = new Memory();
+        jitRam.loadProgram(program);
+        Display jitDisplay = new Display(new NullFrameSink());
+        CPU jit = new CPU(jitRam, jitDisplay, true, this.seed);
+        jit.setCore(Core.JIT);
+
+        // keys change every ten frames or so and are often all up, so ex9e, exa1 and fx0a
+        // see presses, releases and waits
+        Random keys = new Random(this.seed);
+
+        for (long frame = 0; frame < maxFrames; ++frame) {
+            if (keys.nextInt(10) == 0) {
+                int mask = keys.nextInt(3) == 0 ? 0 : keys.nextInt(0x10000) & keys.nextInt(0x10000);
+                interp.setKeys(mask);
+                jit.setKeys(mask);
+            }
+
+            long end = jit.getCycles() + 9;
+
+            while (jit.getCycles() < end) {
+                jit.step(end);
+                interp.run((int) (jit.getCycles() - interp.getCycles()));
+
+                String mismatch = jit.compareState(interp);
+
+                if (mismatch != null) {
+                    System.out.println(String.format("%s (seed %d): tiers diverged at cycle %d in frame %d: %s",
+                        path, this.seed, jit.getCycles(), frame, mismatch));
+                    return false;
+                }
+            }
+
+            interp.doTimerTick();
+            jit.doTimerTick();
+        }
+
+        System.out.println(String.format("%s (seed %d): table core and jit agree over %d frames", path, this.seed, maxFrames));
+        return true;
+    }
+
+    // runs instances copies of every rom across all cores, each with its own seed and
+    // the same cycle budget, and reports the aggregate throughput and any faults
+    public static void runBatch(List<String> paths, int instances, long cycleBudget, Core core) throws IOException, InterruptedException {
+        List<BatchRunner.Job> jobs = new ArrayList<BatchRunner.Job>();
+
+        for (String path : paths) {
+            byte[] program = Files.readAllBytes(Paths.get(path));
+
+            for (int n = 0; n < instances; ++n) {
+                jobs.add(new BatchRunner.Job(path, program, n, cycleBudget));
+            }
+        }
+
+        BatchRunner runner = new BatchRunner(core);
+        BatchRunner.Report report = runner.run(jobs);
+        runner.shutdown();
+
+        for (int n = 0; n < jobs.size(); ++n) {
+            RuntimeException fault = report.getResults().get(n).getFault();
+
+            if (fault != null) {
+                String what = fault instanceof CPUFault ? fault.getMessage() : fault.toString();
+                System.out.println(String.format("%s (seed %d): %s after %d cycles", jobs.get(n).getName(),
+                    jobs.get(n).getSeed(), what, report.getResults().get(n).getCycles()));
+            }
+        }
+
+        System.out.println(String.format("%d machines, %d cycles (%d executed) in %.3f s (%.0f instructions/s), %d faulted",
+            jobs.size(), report.getTotalCycles(), report.getTotalExecuted(), report.getElapsed() / 1e9,
+            report.getThroughput(), report.getFaults()));
+    }
+
+    // steps instances copies of one rom through the lockstep engine, then replays a few of
+    // them on the normal cpu from the same seeds to check both land in the same state
+    public static boolean runLockstep(String path, int instances, long frames) throws IOException {
+        byte[] program = Files.readAllBytes(Paths.get(path));
+
+        // the quirk every cpu in the app runs with
+        boolean falseShift = true;
+        LockstepEngine engine = new LockstepEngine(program, instances, 0, falseShift);
+
+        long start = System.nanoTime();
+        engine.runFrames(frames);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long cycles = engine.getCycles();
+        System.out.println(String.format("%s: %d machines x %d frames, %d cycles in %.3f s (%.0f cycles/s), %.1f machines per dispatch",
+            path, instances, frames, cycles, seconds, cycles / seconds, (double) cycles / engine.getGroups()));
+
+        for (int m = 0; m < Math.min(instances, 16); ++m) {
+            Machine machine = new Machine(program, m, Core.TABLE, falseShift);
+            Machine.Result result = machine.run(frames * 9);
+
+            String mismatch = engine.compare(m, machine);
+
+            if (mismatch == null && (engine.getFault(m) == null) != (result.getFault() == null)) {
+                mismatch = "fault state differs";
+            }
+
+            if (mismatch != null) {
+                System.out.println(String.format("%s: machine %d differs from the cpu: %s", path, m, mismatch));
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // prints a trace as text, or with a reference trace, reports the first place they differ
+    private static boolean decodeTrace(String path, String referencePath) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            TraceDecoder trace = new TraceDecoder(in);
+
+            if (referencePath == null) {
+                // the trace can run to millions of lines, don't flush each one
+                PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+                trace.print(out);
+                out.flush();
+                return true;
+            }
+
+            try (DataInputStream ref = new DataInputStream(new BufferedInputStream(new FileInputStream(referencePath)))) {
+                return trace.diff(new TraceDecoder(ref), System.out);
+            }
+        }
+    }
+
+    private static void usage() {
+        System.out.println("usage: chiplate [--cpu-hz N] [--present-hz N] [--speed X|max] [--mute] [--seed N] [--core switch|table|jit]");
+        System.out.println("                [--record FILE] [--metrics] [--profile DIR] [--trace FILE] [--first-frame]");
+        System.out.println("       chiplate --headless [--frames N] [--cycles N] [--core switch|table|jit | --compare-cores | --diff] ROM");
+        System.out.println("                [--load-state FILE] [--save-state FILE] [--seed N] [--metrics]");
+        System.out.println("       chiplate --headless --profile DIR [--frames N] [--cycles N] ROM...");
+        System.out.println("       chiplate --headless --trace FILE [--frames N] [--cycles N] [--seed N] ROM");
+        System.out.println("       chiplate --headless --debug [--core table|jit] [--seed N] ROM");
+        System.out.println("       chiplate --decode-trace FILE [REFERENCE]");
+        System.out.println("       chiplate --headless --replay FILE [--core switch|table|jit] ROM");
+        System.out.println("       chiplate --headless --batch INSTANCES [--cycles N] [--core switch|table|jit] ROM...");
+        System.out.println("       chiplate --headless --lockstep INSTANCES [--frames N] ROM");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        boolean headless = false;
+        long frames = 0;
+        long cycles = 0;
+        int cpuHz = Scheduler.DEFAULT_CPU_HZ;
+        int presentHz = Scheduler.DEFAULT_PRESENT_HZ;
+        double speed = 1;
+        boolean mute = false;
+        boolean firstFrame = false;
+        Core core = Core.TABLE;
+        boolean compareCores = false;
+        boolean differential = false;
+        int batch = 0;
+        int lockstep = 0;
+        String loadState = null;
+        String saveState = null;
+        Long seed = null;
+        String record = null;
+        String replay = null;
+        boolean metrics = false;
+        String profile = null;
+        String trace = null;
+        String decodeTrace = null;
+        boolean debugger = false;
+        List<String> paths = new ArrayList<String>();
+
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--headless":
+                    headless = true;
+                    break;
+                case "--frames":
+                    if (++i >= args.length) usage();
+                    frames = Long.parseLong(args[i]);
+                    break;
+                case "--cycles":
+                    if (++i >= args.length) usage();
+                    cycles = Long.parseLong(args[i]);
+                    break;
+                case "--cpu-hz":
+                    if (++i >= args.length) usage();
+                    cpuHz = Integer.parseInt(args[i]);
+                    break;
+                case "--present-hz":
+                    if (++i >= args.length) usage();
+                    presentHz = Integer.parseInt(args[i]);
+                    break;
+                case "--speed":
+                    if (++i >= args.length) usage();
+                    speed = args[i].equals("max") ? Scheduler.UNCAPPED : Double.parseDouble(args[i]);
+                    if (!(speed > 0)) usage();
+                    break;
+                case "--mute":
+                    mute = true;
+                    break;
+                case "--first-frame":
+                    firstFrame = true;
+                    break;
+                case "--core":
+                    if (++i >= args.length) usage();
+                    core = Core.valueOf(args[i].toUpperCase());
+                    break;
+                case "--compare-cores":
+                    compareCores = true;
+                    break;
+                case "--diff":
+                    differential = true;
+                    break;
+                case "--load-state":
+                    if (++i >= args.length) usage();
+                    loadState = args[i];
+                    break;
+                case "--save-state":
+                    if (++i >= args.length) usage();
+                    saveState = args[i];
+                    break;
+                case "--seed":
+                    if (++i >= args.length) usage();
+                    seed = Long.parseLong(args[i]);
+                    break;
+                case "--record":
+                    if (++i >= args.length) usage();
+                    record = args[i];
+                    break;
+                case "--replay":
+                    if (++i >= args.length) usage();
+                    replay = args[i];
+                    break;
+                case "--metrics":
+                    metrics = true;
+                    break;
+                case "--profile":
+                    if (++i >= args.length) usage();
+                    profile = args[i];
+                    break;
+                case "--trace":
+                    if (++i >= args.length) usage();
+                    trace = args[i];
+                    break;
+                case "--decode-trace":
+                    if (++i >= args.length) usage();
+                    decodeTrace = args[i];
+                    break;
+                case "--debug":
+                    debugger = true;
+                    break;
+                case "--lockstep":
+                    if (++i >= args.length) usage();
+                    lockstep = Integer.parseInt(args[i]);
+                    break;
+                case "--batch":
+                    if (++i >= args.length) usage();
+                    batch = Integer.parseInt(args[i]);
+                    break;
+                default:
+                    paths.add(args[i]);
+            }
+        }
+
+        if (decodeTrace != null) {
+            if (!decodeTrace(decodeTrace, paths.isEmpty() ? null : paths.get(0))) {
+                System.exit(1);
+            }
+        } else if (!headless) {
+            App app = new App();
+            app.cpuHz = cpuHz;
+            app.presentHz = presentHz;
+            app.speed = speed;
+            app.core = core;
+            app.mute = mute;
+            app.firstFrame = firstFrame;
+            app.recordPath = record;
+            app.metrics = metrics ? Metrics.register() : null;
+            app.profileDir = profile;
+            app.tracePath = trace;
+
+            if (seed != null) {
+                app.seed = seed;
+            }
+
+            try {
+                app.launch();
+            } catch (CPUFault e) {
+                System.out.println(e.getMessage() + ", panicking");
+                System.exit(1);
+            }
+        } else if (paths.isEmpty()) {
+            usage();
+        } else if (batch > 0) {
+            // a minute of emulated time each unless told otherwise
+            runBatch(paths, batch, cycles == 0 ? 9 * 60 * 60 : cycles, core);
+        } else if (lockstep > 0) {
+            if (!runLockstep(paths.get(0), lockstep, frames == 0 ? 60 * 60 : frames)) {
+                System.exit(1);
+            }
+        } else {
+            String path = paths.get(0);
+
+            // default to a minute of emulated time if no limit given
+            if (frames == 0 && cycles == 0) {
+                frames = 60 * 60;
+            }
+
+            try {
+                if (debugger) {
+                    App app = new App();
+
+                    if (seed != null) {
+                        app.seed = seed;
+                    }
+
+                    app.runDebugger(path, core);
+                } else if (replay != null) {
+                    if (!new App().runReplay(path, replay, core)) {
+                        System.exit(1);
+                    }
+                } else if (differential) {
+                    App app = new App();
+
+                    if (seed != null) {
+                        app.seed = seed;
+                    }
+
+                    if (!app.runDifferential(path, frames == 0 ? 60 * 60 : frames)) {
+                        System.exit(1);
+                    }
+                } else if (compareCores) {
+                    new App().compareCores(path, frames, cycles);
+                } else if (profile != null) {
+                    // profiles every rom given, the profiler counts through the table core
+                    for (String rom : paths) {
+                        App app = new App();
+                        app.profileDir = profile;
+
+                        try {
+                            app.runHeadless(rom, frames, cycles, Core.TABLE);
+                        } catch (CPUFault e) {
+                            System.out.println(rom + ": " + e.getMessage());
+                        }
+                    }
+                } else {
+                    App app = new App();
+                    app.loadStatePath = loadState;
+                    app.saveStatePath = saveState;
+                    app.metrics = metrics ? Metrics.register() : null;
+                    app.tracePath = trace;
+
+                    if (seed != null) {
+                        app.seed = seed;
+                    }
+
+                    app.runHeadless(path, frames, cycles, core);
+                }
+            } catch (CPUFault e) {
+                System.out.println(e.getMessage() + ", panicking");
+                System.exit(1);
+            }
+        }
     }
 }
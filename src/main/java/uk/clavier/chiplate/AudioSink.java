@@ -0,0 +1,6 @@
+package uk.clavier.chiplate;
+
+// where the beeper state goes, called from the emulation thread whenever it might have changed
+public interface AudioSink {
+    void setBeeping(boolean beeping);
+}
@@ -0,0 +1,144 @@
+package uk.clavier.chiplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// runs lots of independent machines across every core, each with its own cycle budget
+public class BatchRunner {
+    public static class Job {
+        private final String name;
+        private final byte[] program;
+        private final long seed;
+        private final long cycleBudget;
+
+        public Job(String name, byte[] program, long seed, long cycleBudget) {
+            this.name = name;
+            this.program = program;
+            this.seed = seed;
+            this.cycleBudget = cycleBudget;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public long getSeed() {
+            return this.seed;
+        }
+    }
+
+    public static class Report {
+        private final List<Job> jobs;
+        private final List<Machine.Result> results;
+        private final long elapsed;
+
+        Report(List<Job> jobs, List<Machine.Result> results, long elapsed) {
+            this.jobs = jobs;
+            this.results = results;
+            this.elapsed = elapsed;
+        }
+
+        public List<Job> getJobs() {
+            return this.jobs;
+        }
+
+        public List<Machine.Result> getResults() {
+            return this.results;
+        }
+
+        public long getTotalCycles() {
+            long total = 0;
+
+            for (Machine.Result result : this.results) {
+                total += result.getCycles();
+            }
+
+            return total;
+        }
+
+        public long getTotalExecuted() {
+            long total = 0;
+
+            for (Machine.Result result : this.results) {
+                total += result.getExecuted();
+            }
+
+            return total;
+        }
+
+        public int getFaults() {
+            int faults = 0;
+
+            for (Machine.Result result : this.results) {
+                if (result.getFault() != null) {
+                    faults++;
+                }
+            }
+
+            return faults;
+        }
+
+        // aggregate instructions executed per second of wall clock time across all machines,
+        // cycles skipped as idle don't count
+        public double getThroughput() {
+            return this.getTotalExecuted() / (this.elapsed / 1e9);
+        }
+
+        public long getElapsed() {
+            return this.elapsed;
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final Core core;
+
+    public BatchRunner(int parallelism, Core core) {
+        this.pool = new ForkJoinPool(parallelism);
+        this.core = core;
+    }
+
+    public BatchRunner(Core core) {
+        this(Runtime.getRuntime().availableProcessors(), core);
+    }
+
+    public Report run(List<Job> jobs) throws InterruptedException {
+        List<Callable<Machine.Result>> tasks = new ArrayList<Callable<Machine.Result>>();
+
+        for (Job job : jobs) {
+            tasks.add(() -> {
+                try {
+                    return new Machine(job.program, job.seed, this.core).run(job.cycleBudget);
+                } catch (RuntimeException e) {
+                    // faults are caught inside the machine, this is one that couldn't load
+                    // its rom or an emulator bug. either way it only fails this machine
+                    return new Machine.Result(0, 0, 0, 0, e);
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        List<Future<Machine.Result>> futures = this.pool.invokeAll(tasks);
+        long elapsed = System.nanoTime() - start;
+
+        List<Machine.Result> results = new ArrayList<Machine.Result>();
+
+        for (Future<Machine.Result> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                // every task catches its own exceptions, only an error gets this far
+                throw new IllegalStateException("Machine crashed", e.getCause());
+            }
+        }
+
+        return new Report(jobs, results, elapsed);
+    }
+
+    public void shutdown() {
+        this.pool.shutdown();
+    }
+}
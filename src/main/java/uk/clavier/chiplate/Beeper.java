@@ -0,0 +1,182 @@
+package uk.clavier.chiplate;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.openal.AL;
+import org.lwjgl.openal.ALC;
+import org.lwjgl.openal.ALCCapabilities;
+
+import static org.lwjgl.openal.AL10.*;
+import static org.lwjgl.openal.ALC10.*;
+
+// openal beeper. a short tone block and a silence block are generated once and loaded
+// into a small set of al buffers up front, after that the audio thread only ever requeues
+// those same buffers, tone or silence depending on the flag the emulation thread last set.
+// nothing is allocated or uploaded while running and the emulation thread never waits on it
+public class Beeper implements AudioSink {
+    private static final int SAMPLE_RATE = 44100;
+    // 441hz square wave, a whole number of periods per block so blocks join up without clicks
+    private static final int PERIOD = SAMPLE_RATE / 441;
+    private static final int BLOCK = PERIOD * 2;
+    private static final short AMPLITUDE = 4000;
+
+    // blocks queued at once, 3 blocks of 4.5ms keeps the worst case under 15ms
+    private static final int QUEUED = 3;
+
+    private final long device;
+    private final long context;
+    private final int source;
+
+    // spare buffers ready to queue, each holding one block of its kind
+    private final int[] tones;
+    private final int[] silences;
+    private int spareTones;
+    private int spareSilences;
+
+    private volatile boolean beeping;
+    private volatile boolean running;
+    private Thread thread;
+
+    private Beeper(long device, long context) {
+        this.device = device;
+        this.context = context;
+        this.source = alGenSources();
+
+        ShortBuffer tone = BufferUtils.createShortBuffer(BLOCK);
+        ShortBuffer silence = BufferUtils.createShortBuffer(BLOCK);
+
+        for (int n = 0; n < BLOCK; ++n) {
+            tone.put(n, n % PERIOD < PERIOD / 2 ? AMPLITUDE : (short) -AMPLITUDE);
+        }
+
+        // enough of each that the whole queue can be one kind
+        this.tones = new int[QUEUED];
+        this.silences = new int[QUEUED];
+
+        for (int n = 0; n < QUEUED; ++n) {
+            this.tones[n] = alGenBuffers();
+            alBufferData(this.tones[n], AL_FORMAT_MONO16, tone, SAMPLE_RATE);
+
+            this.silences[n] = alGenBuffers();
+            alBufferData(this.silences[n], AL_FORMAT_MONO16, silence, SAMPLE_RATE);
+        }
+
+        this.spareTones = QUEUED;
+        this.spareSilences = QUEUED;
+    }
+
+    // null if there's no audio device, callers fall back to a NullAudioSink
+    public static Beeper open() {
+        long device = alcOpenDevice((ByteBuffer) null);
+
+        if (device == 0) {
+            return null;
+        }
+
+        ALCCapabilities capabilities = ALC.createCapabilities(device);
+        long context = alcCreateContext(device, (IntBuffer) null);
+
+        if (context == 0) {
+            alcCloseDevice(device);
+            return null;
+        }
+
+        alcMakeContextCurrent(context);
+        AL.createCapabilities(capabilities);
+
+        Beeper beeper = new Beeper(device, context);
+        beeper.start();
+        return beeper;
+    }
+
+    @Override
+    public void setBeeping(boolean beeping) {
+        this.beeping = beeping;
+    }
+
+    private void start() {
+        for (int n = 0; n < QUEUED; ++n) {
+            this.queueNext();
+        }
+
+        alSourcePlay(this.source);
+
+        this.running = true;
+        this.thread = new Thread(this::feed, "chiplate-audio");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private void queueNext() {
+        int buffer = this.beeping ? this.tones[--this.spareTones] : this.silences[--this.spareSilences];
+        alSourceQueueBuffers(this.source, buffer);
+    }
+
+    private void recycle(int buffer) {
+        for (int n = 0; n < QUEUED; ++n) {
+            if (this.tones[n] == buffer) {
+                // the pool is a stack, put it back in the first free slot
+                this.swap(this.tones, n, this.spareTones++);
+                return;
+            }
+
+            if (this.silences[n] == buffer) {
+                this.swap(this.silences, n, this.spareSilences++);
+                return;
+            }
+        }
+    }
+
+    // keeps spares at the front of the array so --spare/spare++ work as a stack
+    private void swap(int[] pool, int from, int to) {
+        int buffer = pool[from];
+        pool[from] = pool[to];
+        pool[to] = buffer;
+    }
+
+    // audio thread: swaps each block that finishes playing for a new one
+    private void feed() {
+        while (this.running) {
+            int processed = alGetSourcei(this.source, AL_BUFFERS_PROCESSED);
+
+            for (int n = 0; n < processed; ++n) {
+                this.recycle(alSourceUnqueueBuffers(this.source));
+                this.queueNext();
+            }
+
+            // starved (the thread got descheduled), pick straight back up
+            if (alGetSourcei(this.source, AL_SOURCE_STATE) != AL_PLAYING) {
+                alSourcePlay(this.source);
+            }
+
+            // well under a block so the queue never runs dry
+            LockSupport.parkNanos(1_000_000L);
+        }
+    }
+
+    public void close() {
+        this.running = false;
+
+        try {
+            this.thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        alSourceStop(this.source);
+        alDeleteSources(this.source);
+
+        for (int n = 0; n < QUEUED; ++n) {
+            alDeleteBuffers(this.tones[n]);
+            alDeleteBuffers(this.silences[n]);
+        }
+
+        alcMakeContextCurrent(0);
+        alcDestroyContext(this.context);
+        alcCloseDevice(this.device);
+    }
+}
@@ -0,0 +1,344 @@
+package uk.clavier.chiplate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+// writes the class file for one translated block. the class keeps each instruction's handler in
+// its own final field and calls it with the opcode as a constant, so every call site only ever
+// sees one handler and the jvm inlines the lot, folding the operand decoding away as it goes.
+// the pc handling Block.run does in a loop is unrolled alongside, with every pc a constant too.
+// nothing else is generated: the handlers stay the one definition of what an instruction does.
+//
+//   public final class Block_xxx implements BlockTranslator.Compiled {
+//       private final CPU.Op op0, op1, ...;
+//       public Block_xxx(CPU.Op[] ops) { op0 = ops[0]; ... }
+//       public int run(CPU cpu, int count) {
+//           op0.exec(cpu, 0x6a00);
+//           if (count <= 1) { cpu.jumpTo(0x202); return 1; }
+//           cpu.jumpTo(0x204);
+//           op1.exec(cpu, 0x3a05);
+//           if (cpu.dumpPC() != 0x204) return 2;
+//           ...
+//       }
+//   }
+//
+// it's written as a java 5 (49) class file so the branches don't need stack map frames
+class BlockCompiler {
+    private static final int VERSION = 49;
+
+    private static final String CPU = "uk/clavier/chiplate/CPU";
+    private static final String OP = "uk/clavier/chiplate/CPU$Op";
+    private static final String COMPILED = "uk/clavier/chiplate/BlockTranslator$Compiled";
+
+    // a small slice of the jvm instruction set
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int ILOAD_2 = 0x1C;
+    private static final int ALOAD_0 = 0x2A;
+    private static final int ALOAD_1 = 0x2B;
+    private static final int AALOAD = 0x32;
+    private static final int IF_ICMPEQ = 0x9F;
+    private static final int IF_ICMPGT = 0xA3;
+    private static final int IRETURN = 0xAC;
+    private static final int RETURN = 0xB1;
+    private static final int GETFIELD = 0xB4;
+    private static final int PUTFIELD = 0xB5;
+    private static final int INVOKEVIRTUAL = 0xB6;
+    private static final int INVOKESPECIAL = 0xB7;
+    private static final int INVOKEINTERFACE = 0xB9;
+
+    // size of an if_<cond> with its offset
+    private static final int BRANCH_SIZE = 3;
+
+    private final ByteArrayOutputStream pool;
+    private final DataOutputStream poolOut;
+    private final Map<String, Integer> entries;
+    private int poolCount;
+
+    private int jumpTo;
+    private int dumpPC;
+
+    private BlockCompiler() {
+        this.pool = new ByteArrayOutputStream();
+        this.poolOut = new DataOutputStream(this.pool);
+        this.entries = new HashMap<String, Integer>();
+        this.poolCount = 1;
+    }
+
+    // name is the binary name with slashes
+    static byte[] compile(String name, BlockTranslator.Block block) {
+        try {
+            return new BlockCompiler().write(name, block);
+        } catch (IOException e) {
+            // only ever writing to memory
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] write(String name, BlockTranslator.Block block) throws IOException {
+        int[] opcodes = block.opcodes;
+        int thisClass = this.classRef(name);
+        int superClass = this.classRef("java/lang/Object");
+        int compiled = this.classRef(COMPILED);
+        int objectInit = this.ref(10, "java/lang/Object", "<init>", "()V");
+        int exec = this.ref(11, OP, "exec", "(L" + CPU + ";I)V");
+        int code = this.utf8("Code");
+
+        this.jumpTo = this.ref(10, CPU, "jumpTo", "(I)V");
+        this.dumpPC = this.ref(10, CPU, "dumpPC", "()I");
+
+        int[] fields = new int[opcodes.length];
+
+        for (int k = 0; k < opcodes.length; ++k) {
+            fields[k] = this.ref(9, name, "op" + k, "L" + OP + ";");
+        }
+
+        // constructor: copy the handlers into the fields
+        ByteArrayOutputStream init = new ByteArrayOutputStream();
+        DataOutputStream initOut = new DataOutputStream(init);
+        initOut.writeByte(ALOAD_0);
+        initOut.writeByte(INVOKESPECIAL);
+        initOut.writeShort(objectInit);
+
+        for (int k = 0; k < opcodes.length; ++k) {
+            initOut.writeByte(ALOAD_0);
+            initOut.writeByte(ALOAD_1);
+            this.pushInt(initOut, k);
+            initOut.writeByte(AALOAD);
+            initOut.writeByte(PUTFIELD);
+            initOut.writeShort(fields[k]);
+        }
+
+        initOut.writeByte(RETURN);
+
+        // run: the same steps as Block.run, one instruction after another.
+        // every branch jumps forward over a return, so each offset is known as it's written
+        ByteArrayOutputStream run = new ByteArrayOutputStream();
+        DataOutputStream runOut = new DataOutputStream(run);
+        int last = opcodes.length - 1;
+
+        for (int k = 0; k < opcodes.length; ++k) {
+            int opcode = opcodes[k];
+            int next = block.start + (k + 1) * 2;
+
+            if (k > 0) {
+                // if (count <= k) { cpu.jumpTo(pc of k); return k; }
+                byte[] stop = this.leave(block.start + k * 2, k);
+                runOut.writeByte(ILOAD_2);
+                this.pushInt(runOut, k);
+                runOut.writeByte(IF_ICMPGT);
+                runOut.writeShort(BRANCH_SIZE + stop.length);
+                runOut.write(stop);
+            }
+
+            boolean skips = BlockTranslator.skips(opcode);
+
+            if (skips || (k == last && block.jumps)) {
+                runOut.writeByte(ALOAD_1);
+                this.pushInt(runOut, next);
+                runOut.writeByte(INVOKEVIRTUAL);
+                runOut.writeShort(this.jumpTo);
+            }
+
+            runOut.writeByte(ALOAD_0);
+            runOut.writeByte(GETFIELD);
+            runOut.writeShort(fields[k]);
+            runOut.writeByte(ALOAD_1);
+            this.pushInt(runOut, opcode);
+            runOut.writeByte(INVOKEINTERFACE);
+            runOut.writeShort(exec);
+            runOut.writeByte(3);
+            runOut.writeByte(0);
+
+            if (skips) {
+                // if (cpu.dumpPC() != next) return k + 1;
+                ByteArrayOutputStream taken = new ByteArrayOutputStream();
+                DataOutputStream takenOut = new DataOutputStream(taken);
+                this.pushInt(takenOut, k + 1);
+                takenOut.writeByte(IRETURN);
+
+                runOut.writeByte(ALOAD_1);
+                runOut.writeByte(INVOKEVIRTUAL);
+                runOut.writeShort(this.dumpPC);
+                this.pushInt(runOut, next);
+                runOut.writeByte(IF_ICMPEQ);
+                runOut.writeShort(BRANCH_SIZE + taken.size());
+                runOut.write(taken.toByteArray());
+            }
+        }
+
+        if (block.jumps) {
+            this.pushInt(runOut, opcodes.length);
+            runOut.writeByte(IRETURN);
+        } else {
+            runOut.write(this.leave(block.end, opcodes.length));
+        }
+
+        int opType = this.utf8("L" + OP + ";");
+        int initName = this.utf8("<init>");
+        int initType = this.utf8("([L" + OP + ";)V");
+        int runName = this.utf8("run");
+        int runType = this.utf8("(L" + CPU + ";I)I");
+        int[] fieldNames = new int[opcodes.length];
+
+        for (int k = 0; k < opcodes.length; ++k) {
+            fieldNames[k] = this.utf8("op" + k);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(VERSION);
+        out.writeShort(this.poolCount);
+        out.write(this.pool.toByteArray());
+
+        // public final super
+        out.writeShort(0x0031);
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);
+        out.writeShort(compiled);
+
+        out.writeShort(opcodes.length);
+
+        for (int k = 0; k < opcodes.length; ++k) {
+            // private final
+            out.writeShort(0x0012);
+            out.writeShort(fieldNames[k]);
+            out.writeShort(opType);
+            out.writeShort(0);
+        }
+
+        out.writeShort(2);
+        writeMethod(out, initName, initType, code, 3, 2, init.toByteArray());
+        writeMethod(out, runName, runType, code, 3, 3, run.toByteArray());
+
+        out.writeShort(0);
+
+        return bytes.toByteArray();
+    }
+
+    // cpu.jumpTo(pc); return ran;
+    private byte[] leave(int pc, int ran) throws IOException {
+        ByteArrayOutputStream code = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(code);
+
+        out.writeByte(ALOAD_1);
+        this.pushInt(out, pc);
+        out.writeByte(INVOKEVIRTUAL);
+        out.writeShort(this.jumpTo);
+        this.pushInt(out, ran);
+        out.writeByte(IRETURN);
+
+        return code.toByteArray();
+    }
+
+    private static void writeMethod(DataOutputStream out, int name, int type, int code,
+                                    int maxStack, int maxLocals, byte[] body) throws IOException {
+        // public
+        out.writeShort(0x0001);
+        out.writeShort(name);
+        out.writeShort(type);
+        out.writeShort(1);
+
+        out.writeShort(code);
+        out.writeInt(12 + body.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(body.length);
+        out.write(body);
+        out.writeShort(0);
+        out.writeShort(0);
+    }
+
+    private void pushInt(DataOutputStream out, int value) throws IOException {
+        if (value <= 5) {
+            out.writeByte(ICONST_0 + value);
+        } else if (value <= Byte.MAX_VALUE) {
+            out.writeByte(BIPUSH);
+            out.writeByte(value);
+        } else if (value <= Short.MAX_VALUE) {
+            out.writeByte(SIPUSH);
+            out.writeShort(value);
+        } else {
+            out.writeByte(LDC_W);
+            out.writeShort(this.integer(value));
+        }
+    }
+
+    // constant pool entries, each written once
+
+    private int utf8(String value) throws IOException {
+        Integer index = this.entries.get("utf8 " + value);
+
+        if (index == null) {
+            this.poolOut.writeByte(1);
+            this.poolOut.writeUTF(value);
+            index = this.add("utf8 " + value);
+        }
+
+        return index;
+    }
+
+    private int integer(int value) throws IOException {
+        Integer index = this.entries.get("int " + value);
+
+        if (index == null) {
+            this.poolOut.writeByte(3);
+            this.poolOut.writeInt(value);
+            index = this.add("int " + value);
+        }
+
+        return index;
+    }
+
+    private int classRef(String name) throws IOException {
+        Integer index = this.entries.get("class " + name);
+
+        if (index == null) {
+            int utf8 = this.utf8(name);
+            this.poolOut.writeByte(7);
+            this.poolOut.writeShort(utf8);
+            index = this.add("class " + name);
+        }
+
+        return index;
+    }
+
+    // tag 9 for a field, 10 for a method, 11 for an interface method
+    private int ref(int tag, String owner, String name, String type) throws IOException {
+        String key = tag + " " + owner + "." + name + type;
+        Integer index = this.entries.get(key);
+
+        if (index == null) {
+            int ownerClass = this.classRef(owner);
+            int nameUtf8 = this.utf8(name);
+            int typeUtf8 = this.utf8(type);
+
+            this.poolOut.writeByte(12);
+            this.poolOut.writeShort(nameUtf8);
+            this.poolOut.writeShort(typeUtf8);
+            int nameAndType = this.add("nat " + key);
+
+            this.poolOut.writeByte(tag);
+            this.poolOut.writeShort(ownerClass);
+            this.poolOut.writeShort(nameAndType);
+            index = this.add(key);
+        }
+
+        return index;
+    }
+
+    private int add(String key) {
+        int index = this.poolCount++;
+        this.entries.put(key, index);
+        return index;
+    }
+}
@@ -0,0 +1,251 @@
+package uk.clavier.chiplate;
+
+import java.util.Arrays;
+
+// jit tier: splits the program into blocks the first time each start pc is hit.
+// a new block runs pre-decoded, as a loop over its handlers with no per instruction fetch
+// or cache check. once it's run often enough it gets compiled into a class of its own
+// (see BlockCompiler) that the jvm can inline straight through
+public class BlockTranslator {
+    // long enough to cover any real straight-line run, short enough that a block
+    // never wanders far past the code it was entered for
+    private static final int MAX_BLOCK_LENGTH = 64;
+
+    // runs before a block is worth a class. most blocks that make it this far run
+    // millions of times, and self-modifying roms don't pay to define classes for code they rewrite
+    private static final int COMPILE_AFTER = 200;
+
+    // what a compiled block class implements. public, the classes live in their own loader
+    public interface Compiled {
+        int run(CPU cpu, int count);
+    }
+
+    // a block runs straight through skips: the pc is only kept up to date for the
+    // instructions that use it, and a skip that's taken leaves the block early
+    static class Block {
+        final int start;
+        final int length;
+        final int end;
+        final CPU.Op[] ops;
+        final int[] opcodes;
+
+        // whether the last instruction sets the pc itself
+        final boolean jumps;
+
+        int runs;
+        Compiled compiled;
+
+        Block(int start, CPU.Op[] ops, int[] opcodes) {
+            this.start = start;
+            this.length = ops.length;
+            this.end = start + ops.length * 2;
+            this.ops = ops;
+            this.opcodes = opcodes;
+            this.jumps = endsBlock(opcodes[ops.length - 1]);
+        }
+
+        // runs up to count instructions and returns how many ran, fewer when a skip is taken
+        int run(CPU cpu, int count) {
+            if (this.compiled != null) {
+                return this.compiled.run(cpu, count);
+            }
+
+            int last = this.length - 1;
+
+            for (int k = 0; k < count; ++k) {
+                int opcode = this.opcodes[k];
+                int next = this.start + (k + 1) * 2;
+
+                if (skips(opcode)) {
+                    cpu.jumpTo(next);
+                    this.ops[k].exec(cpu, opcode);
+
+                    if (cpu.dumpPC() != next) {
+                        return k + 1;
+                    }
+                } else if (k == last && this.jumps) {
+                    cpu.jumpTo(next);
+                    this.ops[k].exec(cpu, opcode);
+                    return count;
+                } else {
+                    this.ops[k].exec(cpu, opcode);
+                }
+            }
+
+            cpu.jumpTo(this.start + count * 2);
+            return count;
+        }
+    }
+
+    // one per generation of blocks: a flush drops the loader with the blocks,
+    // so their classes can be unloaded
+    private static class BlockLoader extends ClassLoader {
+        BlockLoader() {
+            super(BlockTranslator.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] code) {
+            return this.defineClass(name, code, 0, code.length);
+        }
+    }
+
+    private Memory ram;
+    private CPU.Op[] table;
+    private Block[] blocks;
+    private BlockLoader loader;
+
+    // addresses covered by at least one translated block
+    private boolean[] translated;
+
+    private long lookups;
+    private long translations;
+    private long compilations;
+    private long flushes;
+
+    public BlockTranslator(Memory ram, CPU.Op[] table) {
+        this.ram = ram;
+        this.table = table;
+        this.blocks = new Block[Memory.SIZE];
+        this.translated = new boolean[Memory.SIZE];
+        this.loader = new BlockLoader();
+
+        ram.addListener(this::written);
+    }
+
+    Block lookup(int pc) {
+        Block block = this.blocks[pc];
+        this.lookups++;
+
+        if (block == null) {
+            block = this.translate(pc);
+            this.blocks[pc] = block;
+        } else if (block.compiled == null && ++block.runs == COMPILE_AFTER) {
+            block.compiled = this.compile(pc, block);
+        }
+
+        return block;
+    }
+
+    private Compiled compile(int start, Block block) {
+        // unique within the loader, which is all that matters
+        String name = String.format("uk.clavier.chiplate.jit.Block_%03x_%d", start, this.compilations);
+        byte[] code = BlockCompiler.compile(name.replace('.', '/'), block);
+
+        try {
+            Class<?> compiled = this.loader.define(name, code);
+            this.compilations++;
+            return (Compiled) compiled.getConstructor(CPU.Op[].class).newInstance((Object) block.ops);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Couldn't load compiled block at " + String.format("%03x", start), e);
+        }
+    }
+
+    private Block translate(int start) {
+        CPU.Op[] ops = new CPU.Op[MAX_BLOCK_LENGTH];
+        int[] opcodes = new int[MAX_BLOCK_LENGTH];
+        int length = 0;
+        int pc = start;
+
+        // stop short of the end of ram, the first opcode is always taken so a bad
+        // pc still fails the same way it would in the interpreter
+        while (length < MAX_BLOCK_LENGTH && (length == 0 || pc + 1 < Memory.SIZE)) {
+            int opcode = (this.ram.getByte(pc) << 8) | this.ram.getByte(pc + 1);
+
+            ops[length] = this.table[opcode];
+            opcodes[length] = opcode;
+            length++;
+
+            this.translated[pc] = true;
+            this.translated[pc + 1] = true;
+            pc += 2;
+
+            if (endsBlock(opcode)) {
+                break;
+            }
+        }
+
+        CPU.Op[] trimmedOps = new CPU.Op[length];
+        int[] trimmedOpcodes = new int[length];
+        System.arraycopy(ops, 0, trimmedOps, 0, length);
+        System.arraycopy(opcodes, 0, trimmedOpcodes, 0, length);
+
+        this.translations++;
+
+        return new Block(start, trimmedOps, trimmedOpcodes);
+    }
+
+    // anything that sets the pc or writes to ram (which may be the block itself)
+    // has to be the last thing in a block
+    static boolean endsBlock(int opcode) {
+        // bad opcodes panic, nothing after them can run anyway
+        if (!CPU.isValid(opcode)) {
+            return true;
+        }
+
+        switch (opcode >> 12) {
+            case 0x0:
+                return opcode != 0x00E0;
+            case 0x1:
+            case 0x2:
+            case 0xB:
+                return true;
+            case 0xF:
+                int nn = opcode & 0xFF;
+                return nn == 0x0A || nn == 0x33 || nn == 0x55;
+        }
+
+        return false;
+    }
+
+    // conditional skips, which carry on in the block when they're not taken
+    static boolean skips(int opcode) {
+        switch (opcode >> 12) {
+            case 0x3:
+            case 0x4:
+            case 0x5:
+            case 0x9:
+            case 0xE:
+                return CPU.isValid(opcode);
+        }
+
+        return false;
+    }
+
+    // new blocks come from this table, the old ones are dropped
+    void setTable(CPU.Op[] table) {
+        this.table = table;
+        this.drop();
+    }
+
+    // self-modifying code is rare enough that dropping every block is fine
+    private void written(int pos) {
+        if (!this.translated[pos]) {
+            return;
+        }
+
+        this.drop();
+        this.flushes++;
+    }
+
+    private void drop() {
+        Arrays.fill(this.blocks, null);
+        Arrays.fill(this.translated, false);
+        this.loader = new BlockLoader();
+    }
+
+    public long getLookups() {
+        return this.lookups;
+    }
+
+    public long getTranslations() {
+        return this.translations;
+    }
+
+    public long getCompilations() {
+        return this.compilations;
+    }
+
+    public long getFlushes() {
+        return this.flushes;
+    }
+}
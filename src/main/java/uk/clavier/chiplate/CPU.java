@@ -1,8 +1,10 @@
 package uk.clavier.chiplate;
 
-import java.util.Random;
+import java.util.Arrays;
 
 public class CPU {
+    static final int STACK_DEPTH = 50;
+
     private Memory ram;
     private Display display;
 
@@ -14,28 +16,207 @@ public class CPU {
     private int sp;
     private int delayTimer;
     private int soundTimer;
-    private int key;
+    // bit n set while key n is held. only changed between runs (the scheduler
+    // latches input), idle skipping relies on that
+    private int keys;
 
     private boolean falseShift;
-
-    private Random rd;
+    private boolean switchCore;
+
+    private Rng rd;
+
+    // decoded instructions keyed by the pc they were fetched from,
+    // a null handler means that address hasn't been decoded (or was written to since)
+    private Op[] decodedOps;
+    private int[] decodedOpcodes;
+
+    private long cycles;
+    private long cacheMisses;
+    private long blockCycles;
+
+    // where the current run stops, handlers can move cycles up to it to skip idle time
+    private long runEnd;
+    private long idleCycles;
+
+    // bumped by anything that leaves a mark outside the registers (ram writes, drawing)
+    private long effects;
+
+    // machine state the last time a backward jump landed on idleTarget, if it lands there
+    // again in the same state with no effects in between the loop can't get anywhere
+    // until a timer tick or key change, both of which only happen between runs
+    private int idleTarget;
+    private long idleCycle;
+    private long idleEffects;
+    private int[] idleRegisters;
+    private int[] idleStack;
+    private int idleKeys;
+    private int idleI;
+    private int idleSp;
+    private int idleDelay;
+    private int idleSound;
+    private long idleRng;
+
+    // optional jit tier, null when off
+    private BlockTranslator jit;
+
+    // handlers to decode through, OPS unless metrics, the profiler or the tracer swapped in a wrapped copy
+    private Op[] table;
+    private Metrics.Stripe metrics;
+    private Profiler profiler;
+    private Tracer tracer;
+    private Debugger debugger;
+
+    // the profiler, tracer and debugger have to see every instruction: no jit blocks, no idle skipping
+    private boolean stepwise;
 
     public CPU(Memory ram, Display display, boolean falseShift) {
+        this(ram, display, falseShift, System.currentTimeMillis());
+    }
+
+    public CPU(Memory ram, Display display, boolean falseShift, long seed) {
         this.ram = ram;
         this.display = display;
 
         this.registers = new int[16];
         this.i = 0;
-        this.stack = new int[50];
+        this.stack = new int[STACK_DEPTH];
 
         this.pc = 0x200;
         this.sp = -1;
         this.delayTimer = 0;
         this.soundTimer = 0;
         this.falseShift = falseShift;
-        this.key = -1;
+        this.switchCore = false;
+        this.keys = 0;
+
+        this.rd = new Rng(seed);
+
+        this.decodedOps = new Op[Memory.SIZE];
+        this.decodedOpcodes = new int[Memory.SIZE];
+        this.cycles = 0;
+        this.cacheMisses = 0;
+        this.table = OPS;
+
+        this.idleTarget = -1;
+        this.idleRegisters = new int[16];
+        this.idleStack = new int[STACK_DEPTH];
+
+        this.ram.addListener(new MemoryListener() {
+            @Override
+            public void written(int pos) {
+                CPU.this.invalidate(pos);
+            }
+
+            @Override
+            public void written(int start, int end) {
+                CPU.this.invalidate(start, end);
+            }
+        });
+    }
+
+    // power on with a new program, reusing the same ram, display, tables and caches
+    public void reset(byte[] program, long seed) {
+        this.ram.reset(program);
+        this.display.clear();
+
+        Arrays.fill(this.registers, 0);
+        this.i = 0;
+        Arrays.fill(this.stack, 0);
+
+        this.pc = 0x200;
+        this.sp = -1;
+        this.delayTimer = 0;
+        this.soundTimer = 0;
+        this.keys = 0;
+
+        this.rd.setState(Rng.scramble(seed));
+        this.idleTarget = -1;
+    }
+
+    // snapshots everything a run depends on. ram pages are shared with
+    // the snapshot rather than copied, so this is cheap enough to do often
+    public SaveState save() {
+        return new SaveState(this.ram.snapshotPages(), this.registers.clone(), this.i,
+            this.stack.clone(), this.sp, this.pc, this.delayTimer, this.soundTimer, this.keys,
+            this.rd.getState(), this.display.copyRows());
+    }
+
+    // the same bytes save() then flatten would give, written straight into out
+    // with no snapshot, screen copy or shared pages. what rewind captures every frame
+    void flatten(byte[] out) {
+        int pos = this.ram.copyTo(out, 0);
+
+        for (int r = 0; r < 16; ++r) {
+            out[pos++] = (byte) this.registers[r];
+        }
+
+        pos = SaveState.putShort(out, pos, this.i);
+        pos = SaveState.putShort(out, pos, this.pc);
+        out[pos++] = (byte) this.sp;
+
+        for (int level = 0; level < STACK_DEPTH; ++level) {
+            pos = SaveState.putShort(out, pos, this.stack[level]);
+        }
+
+        out[pos++] = (byte) this.delayTimer;
+        out[pos++] = (byte) this.soundTimer;
+        pos = SaveState.putShort(out, pos, this.keys);
+        pos = SaveState.putLong(out, pos, this.rd.getState());
+
+        for (int y = 0; y < 32; ++y) {
+            pos = SaveState.putLong(out, pos, this.display.getRow(y));
+        }
+    }
+
+    // flatten in reverse, what rewind restores every frame. ram pages stay owned and
+    // only the ones that differ get written
+    void unflatten(byte[] in) {
+        int pos = this.ram.copyFrom(in, 0);
+
+        for (int r = 0; r < 16; ++r) {
+            this.registers[r] = in[pos++] & 0xFF;
+        }
+
+        this.i = SaveState.getShort(in, pos);
+        this.pc = SaveState.getShort(in, pos + 2);
+        pos += 4;
+        this.sp = in[pos++];
+
+        for (int level = 0; level < STACK_DEPTH; ++level) {
+            this.stack[level] = SaveState.getShort(in, pos);
+            pos += 2;
+        }
+
+        this.delayTimer = in[pos++] & 0xFF;
+        this.soundTimer = in[pos++] & 0xFF;
+        this.keys = SaveState.getShort(in, pos);
+        pos += 2;
+        this.rd.setState(SaveState.getLong(in, pos));
+        pos += 8;
 
-        this.rd = new Random(System.currentTimeMillis());
+        for (int y = 0; y < 32; ++y) {
+            this.display.setRow(y, SaveState.getLong(in, pos));
+            pos += 8;
+        }
+
+        this.idleTarget = -1;
+    }
+
+    public void restore(SaveState state) {
+        this.ram.restorePages(state.pages);
+        System.arraycopy(state.registers, 0, this.registers, 0, 16);
+        this.i = state.i;
+        System.arraycopy(state.stack, 0, this.stack, 0, STACK_DEPTH);
+        this.sp = state.sp;
+        this.pc = state.pc;
+        this.delayTimer = state.delayTimer;
+        this.soundTimer = state.soundTimer;
+        this.keys = state.keys;
+        this.rd.setState(state.rng);
+        this.display.loadRows(state.screen);
+
+        // the loop being watched for idling belongs to the state we just left
+        this.idleTarget = -1;
     }
 
     // debug mode dumps
@@ -43,10 +224,22 @@ public class CPU {
         return this.registers;
     }
 
+    public int dumpI() {
+        return this.i;
+    }
+
     public int dumpPC() {
         return this.pc;
     }
 
+    public int dumpSp() {
+        return this.sp;
+    }
+
+    public int[] dumpStack() {
+        return this.stack;
+    }
+
     public int dumpOpcode() {
         return (this.ram.getByte(this.pc) << 8) + this.ram.getByte(this.pc + 1);
     }
@@ -62,11 +255,180 @@ public class CPU {
         return split;
     }
     
-    public void setKey(int key) {
-        this.key = key;
+    public void setKeys(int keys) {
+        this.keys = keys & 0xFFFF;
+    }
+
+    public int getKeys() {
+        return this.keys;
+    }
+
+    private boolean isHeld(int key) {
+        return Instructions.isHeld(this.keys, key);
+    }
+
+    // instructions run so far, counting the current one while it executes
+    long getCycles() {
+        return this.cycles;
+    }
+
+    // of those, how many were skipped as idle rather than run
+    long getIdleCycles() {
+        return this.idleCycles;
+    }
+
+    public CPUStats getStats() {
+        if (this.jit == null) {
+            return new CPUStats(this.cycles, this.cacheMisses, this.idleCycles);
+        }
+
+        return new CPUStats(this.cycles, this.cacheMisses, this.idleCycles,
+            this.blockCycles, this.jit.getLookups(), this.jit.getTranslations());
+    }
+
+    // a write to pos changes the instruction starting there and the one starting a byte before
+    private void invalidate(int pos) {
+        this.effects++;
+        this.decodedOps[pos] = null;
+
+        if (pos > 0) {
+            this.decodedOps[pos - 1] = null;
+        }
+    }
+
+    private void invalidate(int start, int end) {
+        this.effects++;
+        Arrays.fill(this.decodedOps, Math.max(start - 1, 0), end, null);
+    }
+
+    public void setCore(Core core) {
+        this.switchCore = core == Core.SWITCH;
+        this.jit = core == Core.JIT ? new BlockTranslator(this.ram, this.table) : null;
+    }
+
+    // counts opcode classes into the stripe (or stops counting with null). only the table
+    // and jit cores go through the handler table, the switch core is never counted
+    public void setMetrics(Metrics.Stripe stripe) {
+        this.metrics = stripe;
+        this.rebuildTable();
+    }
+
+    // counts every instruction into the profiler (or stops with null). the profiler needs
+    // the pc of each instruction, so while one is attached the jit steps aside for the table core
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+        this.rebuildTable();
     }
 
-    private void execute(int opcode) {
+    // writes a record per instruction into the tracer (or stops with null), stepping
+    // through the table core the same way the profiler does
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+        this.rebuildTable();
+    }
+
+    // checks breakpoints, watchpoints and conditions around every instruction (or stops with null).
+    // the debugger only attaches while something is armed, the rest of the time it costs nothing
+    public void setDebugger(Debugger debugger) {
+        this.debugger = debugger;
+        this.rebuildTable();
+    }
+
+    // the debugger stopping a run from inside a handler. before an instruction it's put back
+    // as if it was never fetched, after one the run just ends there
+    void stopBefore() {
+        this.pc -= 2;
+        this.cycles--;
+        this.runEnd = this.cycles;
+    }
+
+    void stopAfter() {
+        this.runEnd = this.cycles;
+    }
+
+    private void rebuildTable() {
+        Op[] table = OPS;
+
+        if (this.metrics != null) {
+            table = this.metrics.instrument(table);
+        }
+
+        if (this.profiler != null) {
+            table = this.profiler.instrument(table);
+        }
+
+        if (this.tracer != null) {
+            table = this.tracer.instrument(table);
+        }
+
+        // outermost, so a breakpoint stops the instruction before anything else sees it
+        if (this.debugger != null) {
+            table = this.debugger.instrument(table);
+        }
+
+        this.table = table;
+        this.stepwise = this.profiler != null || this.tracer != null || this.debugger != null;
+
+        // drop everything decoded through the old table
+        Arrays.fill(this.decodedOps, null);
+
+        if (this.jit != null) {
+            this.jit.setTable(this.table);
+        }
+    }
+
+    public BlockTranslator getJit() {
+        return this.jit;
+    }
+
+    // public for compiled jit blocks, like Op
+    public void jumpTo(int pc) {
+        this.pc = pc;
+    }
+
+    // compares everything the two tiers have to agree on, null when they match
+    public String compareState(CPU other) {
+        if (this.pc != other.pc) {
+            return String.format("pc %04x != %04x", this.pc, other.pc);
+        }
+
+        if (this.i != other.i) {
+            return String.format("I %04x != %04x", this.i, other.i);
+        }
+
+        for (int r = 0; r < 16; ++r) {
+            if (this.registers[r] != other.registers[r]) {
+                return String.format("v%01x %02x != %02x", r, this.registers[r], other.registers[r]);
+            }
+        }
+
+        if (this.sp != other.sp) {
+            return String.format("sp %d != %d", this.sp, other.sp);
+        }
+
+        for (int level = 0; level <= this.sp; ++level) {
+            if (this.stack[level] != other.stack[level]) {
+                return String.format("stack[%d] %04x != %04x", level, this.stack[level], other.stack[level]);
+            }
+        }
+
+        if (this.delayTimer != other.delayTimer) {
+            return String.format("delay timer %02x != %02x", this.delayTimer, other.delayTimer);
+        }
+
+        if (this.soundTimer != other.soundTimer) {
+            return String.format("sound timer %02x != %02x", this.soundTimer, other.soundTimer);
+        }
+
+        if (!this.display.sameFrame(other.display)) {
+            return "framebuffer differs";
+        }
+
+        return null;
+    }
+
+    // the original nested switch core, kept as a baseline to measure the table against
+    private void executeSwitch(int opcode) {
         int[] split = this.splitOpcode(opcode);
 
         int x = split[2];
@@ -86,8 +448,7 @@ public class CPU {
                     return;
                 }
 
-                System.out.println("0NNN called, panicking");
-                System.exit(1);
+                throw new CPUFault("0NNN called", this.pc - 2, opcode);
 
             case 0x1:
                 this.pc = opcode & 0xFFF;
@@ -198,16 +559,16 @@ public class CPU {
                             this.registers[0xF] = 1;
                         }
 
-                        this.registers[x] = (byte) (subnxy_res & 0xFF);
+                        this.registers[x] = subnxy_res & 0xFF;
 
                         return;
                     case 0xE:
                         if (this.falseShift) {
-                            this.registers[0xF] = (byte) ((this.registers[x] >> 7) & 1);
+                            this.registers[0xF] = (this.registers[x] >> 7) & 1;
                             this.registers[x] = (this.registers[x] << 1) & 0xFF;
                         } else {
-                            this.registers[0xF] = (byte) ((this.registers[y] >> 7) & 1);
-                            this.registers[x] = (byte) (this.registers[y] << 1) & 0xFF;
+                            this.registers[0xF] = (this.registers[y] >> 7) & 1;
+                            this.registers[x] = (this.registers[y] << 1) & 0xFF;
                         }
 
                         return;
@@ -262,13 +623,13 @@ public class CPU {
 
             case 0xE:
                 if (split[1] == 0x9 && split[0] == 0xE) {
-                    if (this.registers[x] == this.key) {
+                    if (this.isHeld(this.registers[x])) {
                         this.pc += 2;
                     }
 
                     return;
                 } else if (split[1] == 0xA && split[0] == 0x1) {
-                    if (this.registers[x] != this.key) {
+                    if (!this.isHeld(this.registers[x])) {
                         this.pc += 2;
                     }
 
@@ -280,14 +641,14 @@ public class CPU {
             case 0xF:
                 switch (opcode & 0xFF) {
                     case 0x07:
-                        this.registers[x] = (byte) this.delayTimer;
+                        this.registers[x] = this.delayTimer;
 
                         return;
                     case 0x0A:
-                        if (this.key == -1) {
+                        if (this.keys == 0) {
                             this.pc -= 2;
                         } else {
-                            this.registers[x] = this.key;
+                            this.registers[x] = Integer.numberOfTrailingZeros(this.keys);
                         }
 
                         return;
@@ -332,8 +693,344 @@ public class CPU {
                 break;
         }
 
-        System.out.println(String.format("Unknown instruction %04x called, panicking", opcode));
-        System.exit(1);
+        throw new CPUFault("Unknown instruction", this.pc - 2, opcode);
+    }
+
+    // table core: every one of the 65536 opcodes maps straight to its handler,
+    // handlers pull their own fields out with shifts so nothing is allocated per cycle.
+    // public because compiled jit blocks, which live in their own class loader, call them
+    public interface Op {
+        void exec(CPU cpu, int opcode);
+    }
+
+    private static final Op UNKNOWN = CPU::opUnknown;
+    private static final Op[] OPS = buildTable();
+
+    static Op handlerFor(int opcode) {
+        return OPS[opcode];
+    }
+
+    static boolean isValid(int opcode) {
+        return OPS[opcode] != UNKNOWN;
+    }
+
+    private static Op[] buildTable() {
+        Op[] table = new Op[0x10000];
+
+        for (int opcode = 0; opcode < table.length; ++opcode) {
+            table[opcode] = decode(opcode);
+        }
+
+        return table;
+    }
+
+    private static Op decode(int opcode) {
+        int n = opcode & 0xF;
+        int nn = opcode & 0xFF;
+
+        switch (opcode >> 12) {
+            case 0x0:
+                if (opcode == 0x00E0) return CPU::opCls;
+                if (opcode == 0x00EE) return CPU::opRet;
+                return CPU::opSys;
+            case 0x1: return CPU::opJump;
+            case 0x2: return CPU::opCall;
+            case 0x3: return CPU::opSkipEqImm;
+            case 0x4: return CPU::opSkipNeImm;
+            case 0x5:
+                if (n == 0) return CPU::opSkipEqReg;
+                break;
+            case 0x6: return CPU::opLoadImm;
+            case 0x7: return CPU::opAddImm;
+            case 0x8:
+                switch (n) {
+                    case 0x0: return CPU::opMove;
+                    case 0x1: return CPU::opOr;
+                    case 0x2: return CPU::opAnd;
+                    case 0x3: return CPU::opXor;
+                    case 0x4: return CPU::opAdd;
+                    case 0x5: return CPU::opSub;
+                    case 0x6: return CPU::opShr;
+                    case 0x7: return CPU::opSubn;
+                    case 0xE: return CPU::opShl;
+                }
+                break;
+            case 0x9:
+                if (n == 0) return CPU::opSkipNeReg;
+                break;
+            case 0xA: return CPU::opLoadI;
+            case 0xB: return CPU::opJumpV0;
+            case 0xC: return CPU::opRand;
+            case 0xD: return CPU::opDraw;
+            case 0xE:
+                if (nn == 0x9E) return CPU::opSkipKey;
+                if (nn == 0xA1) return CPU::opSkipNotKey;
+                break;
+            case 0xF:
+                switch (nn) {
+                    case 0x07: return CPU::opGetDelay;
+                    case 0x0A: return CPU::opWaitKey;
+                    case 0x15: return CPU::opSetDelay;
+                    case 0x18: return CPU::opSetSound;
+                    case 0x1E: return CPU::opAddI;
+                    case 0x29: return CPU::opFont;
+                    case 0x33: return CPU::opBcd;
+                    case 0x55: return CPU::opStore;
+                    case 0x65: return CPU::opLoad;
+                }
+                break;
+        }
+
+        return UNKNOWN;
+    }
+
+    private static void opCls(CPU c, int op) {
+        c.effects++;
+        c.display.clear();
+    }
+
+    private static void opRet(CPU c, int op) {
+        if (c.sp < 0) {
+            throw new CPUFault("Return with empty stack", c.pc - 2, op);
+        }
+
+        c.pc = c.stack[c.sp];
+        c.sp--;
+    }
+
+    private static void opSys(CPU c, int op) {
+        throw new CPUFault("0NNN called", c.pc - 2, op);
+    }
+
+    private static void opJump(CPU c, int op) {
+        int target = op & 0xFFF;
+
+        if (target < c.pc) {
+            c.loopedBack(target);
+        }
+
+        c.pc = target;
+    }
+
+    // whole iterations of a loop that can't change anything are skipped straight to the
+    // end of the run, leaving the machine exactly where running them would have
+    private void loopedBack(int target) {
+        boolean same = target == this.idleTarget && this.effects == this.idleEffects
+            && this.keys == this.idleKeys && this.i == this.idleI && this.sp == this.idleSp
+            && this.delayTimer == this.idleDelay && this.soundTimer == this.idleSound
+            && this.rd.getState() == this.idleRng && Arrays.equals(this.registers, this.idleRegisters);
+
+        for (int level = 0; same && level <= this.sp; ++level) {
+            same = this.stack[level] == this.idleStack[level];
+        }
+
+        if (same && !this.stepwise) {
+            long length = this.cycles - this.idleCycle;
+            long remaining = this.runEnd - this.cycles;
+
+            if (length > 0 && remaining > 0) {
+                long skipped = remaining / length * length;
+                this.cycles += skipped;
+                this.idleCycles += skipped;
+            }
+        }
+
+        this.idleTarget = target;
+        this.idleCycle = this.cycles;
+        this.idleEffects = this.effects;
+        this.idleKeys = this.keys;
+        this.idleI = this.i;
+        this.idleSp = this.sp;
+        this.idleDelay = this.delayTimer;
+        this.idleSound = this.soundTimer;
+        this.idleRng = this.rd.getState();
+        System.arraycopy(this.registers, 0, this.idleRegisters, 0, 16);
+        System.arraycopy(this.stack, 0, this.idleStack, 0, this.sp + 1);
+    }
+
+    public boolean isBeeping() {
+        return this.soundTimer > 0;
+    }
+
+    // stuck in fx0a with no timers running, nothing will happen until a key goes down
+    public boolean isWaitingForKey() {
+        return this.keys == 0 && this.delayTimer == 0 && this.soundTimer == 0
+            && (this.ram.getByte(this.pc) & 0xF0) == 0xF0 && this.ram.getByte(this.pc + 1) == 0x0A;
+    }
+
+    private static void opCall(CPU c, int op) {
+        if (c.sp == c.stack.length - 1) {
+            throw new CPUFault("Stack overflow", c.pc - 2, op);
+        }
+
+        c.sp++;
+        c.stack[c.sp] = c.pc;
+        c.pc = op & 0xFFF;
+    }
+
+    // the handlers only unpack operands and apply what Instructions works out,
+    // so they stay in step with the lockstep engine
+
+    private static void opSkipEqImm(CPU c, int op) {
+        if (Instructions.skipEqImm(c.registers, 0, (op >> 8) & 0xF, op & 0xFF)) {
+            c.pc += 2;
+        }
+    }
+
+    private static void opSkipNeImm(CPU c, int op) {
+        if (Instructions.skipNeImm(c.registers, 0, (op >> 8) & 0xF, op & 0xFF)) {
+            c.pc += 2;
+        }
+    }
+
+    private static void opSkipEqReg(CPU c, int op) {
+        if (Instructions.skipEqReg(c.registers, 0, (op >> 8) & 0xF, (op >> 4) & 0xF)) {
+            c.pc += 2;
+        }
+    }
+
+    private static void opLoadImm(CPU c, int op) {
+        Instructions.loadImm(c.registers, 0, (op >> 8) & 0xF, op & 0xFF);
+    }
+
+    private static void opAddImm(CPU c, int op) {
+        Instructions.addImm(c.registers, 0, (op >> 8) & 0xF, op & 0xFF);
+    }
+
+    private static void opMove(CPU c, int op) {
+        Instructions.move(c.registers, 0, (op >> 8) & 0xF, (op >> 4) & 0xF);
+    }
+
+    private static void opOr(CPU c, int op) {
+        Instructions.or(c.registers, 0, (op >> 8) & 0xF, (op >> 4) & 0xF);
+    }
+
+    private static void opAnd(CPU c, int op) {
+        Instructions.and(c.registers, 0, (op >> 8) & 0xF, (op >> 4) & 0xF);
+    }
+
+    private static void opXor(CPU c, int op) {
+        Instructions.xor(c.registers, 0, (op >> 8) & 0xF, (op >> 4) & 0xF);
+    }
+
+    private static void opAdd(CPU c, int op) {
+        Instructions.add(c.registers, 0, (op >> 8) & 0xF, (op >> 4) & 0xF);
+    }
+
+    private static void opSub(CPU c, int op) {
+        Instructions.sub(c.registers, 0, (op >> 8) & 0xF, (op >> 4) & 0xF);
+    }
+
+    private static void opShr(CPU c, int op) {
+        Instructions.shr(c.registers, 0, (op >> 8) & 0xF, (op >> 4) & 0xF, c.falseShift);
+    }
+
+    private static void opSubn(CPU c, int op) {
+        Instructions.subn(c.registers, 0, (op >> 8) & 0xF, (op >> 4) & 0xF);
+    }
+
+    private static void opShl(CPU c, int op) {
+        Instructions.shl(c.registers, 0, (op >> 8) & 0xF, (op >> 4) & 0xF, c.falseShift);
+    }
+
+    private static void opSkipNeReg(CPU c, int op) {
+        if (Instructions.skipNeReg(c.registers, 0, (op >> 8) & 0xF, (op >> 4) & 0xF)) {
+            c.pc += 2;
+        }
+    }
+
+    private static void opLoadI(CPU c, int op) {
+        c.i = op & 0xFFF;
+    }
+
+    private static void opJumpV0(CPU c, int op) {
+        c.pc = (op & 0xFFF) + c.registers[0];
+    }
+
+    private static void opRand(CPU c, int op) {
+        Instructions.rand(c.registers, 0, (op >> 8) & 0xF, op & 0xFF, c.rd.nextInt());
+    }
+
+    private static void opDraw(CPU c, int op) {
+        int sprite_x = c.registers[(op >> 8) & 0xF] % 64;
+        int sprite_y = c.registers[(op >> 4) & 0xF] % 32;
+        c.effects++;
+
+        c.registers[0xF] = c.display.drawSprite(c.ram, c.i, sprite_x, sprite_y, op & 0xF) ? 1 : 0;
+    }
+
+    private static void opSkipKey(CPU c, int op) {
+        if (c.isHeld(c.registers[(op >> 8) & 0xF])) {
+            c.pc += 2;
+        }
+    }
+
+    private static void opSkipNotKey(CPU c, int op) {
+        if (!c.isHeld(c.registers[(op >> 8) & 0xF])) {
+            c.pc += 2;
+        }
+    }
+
+    private static void opGetDelay(CPU c, int op) {
+        c.registers[(op >> 8) & 0xF] = c.delayTimer;
+    }
+
+    private static void opWaitKey(CPU c, int op) {
+        if (c.keys == 0) {
+            c.pc -= 2;
+
+            // the key can't change before the run ends, so neither can anything else
+            if (!c.stepwise && c.runEnd > c.cycles) {
+                c.idleCycles += c.runEnd - c.cycles;
+                c.cycles = c.runEnd;
+            }
+        } else {
+            Instructions.waitKey(c.registers, 0, (op >> 8) & 0xF, c.keys);
+        }
+    }
+
+    private static void opSetDelay(CPU c, int op) {
+        c.delayTimer = c.registers[(op >> 8) & 0xF];
+    }
+
+    private static void opSetSound(CPU c, int op) {
+        c.soundTimer = c.registers[(op >> 8) & 0xF];
+    }
+
+    private static void opAddI(CPU c, int op) {
+        c.i += c.registers[(op >> 8) & 0xF];
+    }
+
+    private static void opFont(CPU c, int op) {
+        c.i = c.registers[(op >> 8) & 0xF] * 5;
+    }
+
+    private static void opBcd(CPU c, int op) {
+        int n = c.registers[(op >> 8) & 0xF];
+
+        for (int digit = 0; digit < 3; ++digit) {
+            c.ram.setByte(c.i + digit, (byte) Instructions.bcdDigit(n, digit));
+        }
+    }
+
+    private static void opStore(CPU c, int op) {
+        int x = (op >> 8) & 0xF;
+
+        for (int offset = 0; offset <= x; ++offset) {
+            c.ram.setByte(c.i + offset, (byte) c.registers[offset]);
+        }
+    }
+
+    private static void opLoad(CPU c, int op) {
+        int x = (op >> 8) & 0xF;
+
+        for (int offset = 0; offset <= x; ++offset) {
+            c.registers[offset] = c.ram.getByte(c.i + offset);
+        }
+    }
+
+    private static void opUnknown(CPU c, int op) {
+        throw new CPUFault("Unknown instruction", c.pc - 2, op);
     }
 
     public void doTimerTick() {
@@ -346,10 +1043,75 @@ public class CPU {
         }
     }
 
+    // runs count instructions, through translated blocks when the jit is on
+    // (idle loops skip ahead by moving cycles on, so this counts to an end cycle)
+    public void run(int count) {
+        this.runEnd = this.cycles + count;
+
+        if (this.jit == null || this.stepwise) {
+            while (this.cycles < this.runEnd) {
+                this.cycle();
+            }
+
+            return;
+        }
+
+        while (this.cycles < this.runEnd) {
+            this.runBlock();
+        }
+    }
+
+    // one block (or one instruction without the jit) of a run that ends at cycle end,
+    // so the differential test can compare after every block
+    void step(long end) {
+        this.runEnd = end;
+
+        if (this.jit == null || this.stepwise) {
+            this.cycle();
+        } else {
+            this.runBlock();
+        }
+    }
+
+    private void runBlock() {
+        BlockTranslator.Block block = this.jit.lookup(this.pc);
+        int n = (int) Math.min(block.length, this.runEnd - this.cycles);
+
+        // counted up front, the instruction that ends a block sees the same cycle count
+        // it would in the interpreter. a taken skip hands back what it didn't run
+        this.cycles += n;
+        int ran = block.run(this, n);
+        this.cycles -= n - ran;
+        this.blockCycles += ran;
+    }
+
     public void cycle() {
-        int opcode = (this.ram.getByte(this.pc) << 8) + this.ram.getByte(this.pc + 1);
-        this.pc += 2;
+        this.cycles++;
+
+        if (this.switchCore) {
+            // the switch core has no cache, every fetch is a fresh decode
+            this.cacheMisses++;
+
+            int opcode = (this.ram.getByte(this.pc) << 8) | this.ram.getByte(this.pc + 1);
+            this.pc += 2;
+
+            this.executeSwitch(opcode);
+            return;
+        }
+
+        int pc = this.pc;
+        Op op = this.decodedOps[pc];
+
+        if (op == null) {
+            int opcode = (this.ram.getByte(pc) << 8) | this.ram.getByte(pc + 1);
+            op = this.table[opcode];
+
+            this.decodedOps[pc] = op;
+            this.decodedOpcodes[pc] = opcode;
+            this.cacheMisses++;
+        }
 
-        this.execute(opcode);
+        this.pc = pc + 2;
+        op.exec(this, this.decodedOpcodes[pc]);
     }
 }
\ No newline at end of file
@@ -0,0 +1,30 @@
+package uk.clavier.chiplate;
+
+// thrown when a rom does something the cpu can't carry on from (bad opcode,
+// stack under/overflow, running off the end of memory). it only ever takes down
+// the machine it came from, what happens next is up to whoever is running it
+public class CPUFault extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final int pc;
+    private final int opcode;
+
+    public CPUFault(String message, int pc, int opcode) {
+        super(message);
+        this.pc = pc;
+        this.opcode = opcode;
+    }
+
+    public int getPC() {
+        return this.pc;
+    }
+
+    public int getOpcode() {
+        return this.opcode;
+    }
+
+    @Override
+    public String getMessage() {
+        return String.format("%s (opcode %04x at %04x)", super.getMessage(), this.opcode, this.pc);
+    }
+}
@@ -0,0 +1,92 @@
+package uk.clavier.chiplate;
+
+// point in time copy of the cpu counters
+public class CPUStats {
+    private final long cycles;
+    private final long cacheMisses;
+    private final long idleCycles;
+
+    // instructions run inside jit blocks, which never touch the decode cache,
+    // and how often a block was looked up (a miss is a translation)
+    private final long blockCycles;
+    private final long blockLookups;
+    private final long blockMisses;
+
+    public CPUStats(long cycles, long cacheMisses, long idleCycles) {
+        this(cycles, cacheMisses, idleCycles, 0, 0, 0);
+    }
+
+    public CPUStats(long cycles, long cacheMisses, long idleCycles, long blockCycles, long blockLookups, long blockMisses) {
+        this.cycles = cycles;
+        this.cacheMisses = cacheMisses;
+        this.idleCycles = idleCycles;
+        this.blockCycles = blockCycles;
+        this.blockLookups = blockLookups;
+        this.blockMisses = blockMisses;
+    }
+
+    public long getCycles() {
+        return this.cycles;
+    }
+
+    // cycles skipped over in idle loops rather than executed
+    public long getIdleCycles() {
+        return this.idleCycles;
+    }
+
+    // instructions that actually ran, what throughput should be measured in
+    public long getExecuted() {
+        return this.cycles - this.idleCycles;
+    }
+
+    // instructions that went through the decode cache one at a time
+    private long getDecoded() {
+        return this.cycles - this.idleCycles - this.blockCycles;
+    }
+
+    public long getCacheHits() {
+        return this.getDecoded() - this.cacheMisses;
+    }
+
+    public long getCacheMisses() {
+        return this.cacheMisses;
+    }
+
+    public double getCacheHitRate() {
+        long decoded = this.getDecoded();
+
+        if (decoded == 0) {
+            return 0;
+        }
+
+        return (double) this.getCacheHits() / decoded;
+    }
+
+    public long getBlockLookups() {
+        return this.blockLookups;
+    }
+
+    public double getBlockHitRate() {
+        if (this.blockLookups == 0) {
+            return 0;
+        }
+
+        return (double) (this.blockLookups - this.blockMisses) / this.blockLookups;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder line = new StringBuilder(String.format("%d cycles (%d skipped idle)", this.cycles, this.idleCycles));
+
+        if (this.getDecoded() > 0) {
+            line.append(String.format(", decode cache %.2f%% hits (%d misses)", this.getCacheHitRate() * 100, this.cacheMisses));
+        }
+
+        if (this.blockLookups > 0) {
+            line.append(String.format(", block cache %.2f%% hits (%d lookups, %d misses)",
+                this.getBlockHitRate() * 100, this.blockLookups, this.blockMisses));
+        }
+
+        return line.toString();
+    }
+}
@@ -0,0 +1,8 @@
+package uk.clavier.chiplate;
+
+// which of the cpu's interpreters runs the rom, see CPU.setCore
+public enum Core {
+    SWITCH, // the original nested switch interpreter
+    TABLE,  // table dispatch with the decode cache
+    JIT     // translated basic blocks, falling back to the table core
+}
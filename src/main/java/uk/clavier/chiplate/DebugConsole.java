@@ -0,0 +1,315 @@
+package uk.clavier.chiplate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+
+// line based debugger commands over any reader/writer, so it works headless and from a script:
+//   echo "b 22a\nc\nregs" | chiplate --headless --debug programs/BRIX
+public class DebugConsole {
+    // continue runs for at most a minute of emulated time unless told otherwise
+    private static final long DEFAULT_FRAMES = 60 * 60;
+
+    private final CPU cpu;
+    private final Memory ram;
+    private final Display display;
+    private final Debugger debugger;
+    private final int cpuHz;
+    private final PrintStream out;
+
+    // timer ticks so far, on the same schedule as the scheduler's
+    private long ticks;
+
+    public DebugConsole(CPU cpu, Memory ram, Display display, int cpuHz, PrintStream out) {
+        this.cpu = cpu;
+        this.ram = ram;
+        this.display = display;
+        this.debugger = new Debugger(cpu, ram);
+        this.cpuHz = cpuHz;
+        this.out = out;
+    }
+
+    // reads commands until quit or the end of input
+    public void run(BufferedReader in) throws IOException {
+        this.where();
+
+        while (true) {
+            this.out.print("> ");
+            this.out.flush();
+
+            String line = in.readLine();
+
+            if (line == null) {
+                break;
+            }
+
+            String[] words = line.trim().split("\\s+");
+
+            if (words[0].isEmpty()) {
+                continue;
+            }
+
+            if (words[0].equals("q") || words[0].equals("quit")) {
+                break;
+            }
+
+            try {
+                this.command(words);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                this.out.println("bad arguments, try help");
+            } catch (CPUFault e) {
+                this.out.println(e.getMessage());
+            }
+        }
+
+        this.debugger.detach();
+    }
+
+    private void command(String[] words) {
+        switch (words[0]) {
+            case "b":
+            case "break":
+                this.report(this.debugger.setBreakpoint(address(words[1]), true), "breakpoint set at " + words[1]);
+                break;
+            case "w":
+            case "watch":
+                this.report(this.debugger.setWatchpoint(address(words[1]), true), "watching writes to " + words[1]);
+                break;
+            case "when":
+                this.when(words);
+                break;
+            case "del":
+            case "delete":
+                this.delete(words);
+                break;
+            case "clear":
+                this.debugger.clear();
+                this.out.println("cleared");
+                break;
+            case "info":
+                this.info();
+                break;
+            case "s":
+            case "step":
+                this.run(words.length > 1 ? Long.parseLong(words[1]) : 1);
+                break;
+            case "n":
+            case "next":
+                this.next();
+                break;
+            case "f":
+            case "finish":
+                this.finish();
+                break;
+            case "c":
+            case "continue":
+                this.run((words.length > 1 ? Long.parseLong(words[1]) : DEFAULT_FRAMES) * this.cpuHz / 60);
+                break;
+            case "r":
+            case "regs":
+                this.regs();
+                break;
+            case "x":
+                this.dump(address(words[1]), words.length > 2 ? Integer.parseInt(words[2]) : 16);
+                break;
+            case "keys":
+                this.cpu.setKeys(Integer.parseInt(words[1], 16));
+                break;
+            case "help":
+                this.help();
+                break;
+            default:
+                this.out.println("unknown command " + words[0] + ", try help");
+        }
+    }
+
+    private static int address(String word) {
+        int address = Integer.parseInt(word, 16);
+
+        if (address < 0 || address >= Memory.SIZE) {
+            throw new NumberFormatException();
+        }
+
+        return address;
+    }
+
+    private void report(boolean changed, String what) {
+        this.out.println(changed ? what : "already set");
+    }
+
+    // when vX|i OP VALUE, value in hex
+    private void when(String[] words) {
+        String target = words[1].toLowerCase();
+        int register;
+
+        if (target.equals("i")) {
+            register = Debugger.Condition.I;
+        } else if (target.length() == 2 && target.charAt(0) == 'v') {
+            register = Integer.parseInt(target.substring(1), 16);
+        } else {
+            throw new NumberFormatException();
+        }
+
+        if (!Debugger.Condition.isComparison(words[2])) {
+            throw new NumberFormatException();
+        }
+
+        this.debugger.addCondition(register, words[2], Integer.parseInt(words[3], 16));
+        this.out.println("stopping when " + words[1] + " " + words[2] + " " + words[3]);
+    }
+
+    // del b ADDR, del w ADDR, del c N (as numbered by info)
+    private void delete(String[] words) {
+        boolean removed;
+
+        switch (words[1]) {
+            case "b":
+                removed = this.debugger.setBreakpoint(address(words[2]), false);
+                break;
+            case "w":
+                removed = this.debugger.setWatchpoint(address(words[2]), false);
+                break;
+            case "c":
+                removed = this.debugger.removeCondition(Integer.parseInt(words[2]));
+                break;
+            default:
+                throw new NumberFormatException();
+        }
+
+        this.out.println(removed ? "deleted" : "nothing to delete");
+    }
+
+    private void info() {
+        for (int pc : this.debugger.getBreakpoints()) {
+            this.out.println(String.format("breakpoint %03x  %s", pc, Disassembler.disassemble(this.opcodeAt(pc))));
+        }
+
+        for (int pos : this.debugger.getWatchpoints()) {
+            this.out.println(String.format("watchpoint %03x", pos));
+        }
+
+        int n = 0;
+
+        for (Debugger.Condition condition : this.debugger.getConditions()) {
+            this.out.println(String.format("condition %d  %s", n++, condition));
+        }
+    }
+
+    // steps over a call by stopping once it's back at the next instruction at the same depth
+    private void next() {
+        int pc = this.cpu.dumpPC();
+
+        if (this.opcodeAt(pc) >> 12 == 0x2) {
+            this.debugger.stopAt(pc + 2, this.cpu.dumpSp());
+            this.run(DEFAULT_FRAMES * this.cpuHz / 60);
+        } else {
+            this.run(1);
+        }
+    }
+
+    // runs until the current subroutine returns to whatever's on top of the stack
+    private void finish() {
+        int sp = this.cpu.dumpSp();
+
+        if (sp < 0) {
+            this.out.println("not in a subroutine");
+            return;
+        }
+
+        this.debugger.stopAt(this.cpu.dumpStack()[sp], sp - 1);
+        this.run(DEFAULT_FRAMES * this.cpuHz / 60);
+    }
+
+    // runs up to count instructions, ticking the timers along the way, until the debugger stops it
+    private void run(long count) {
+        this.debugger.arm();
+
+        long start = this.cpu.getCycles();
+        long end = start + count;
+
+        while (this.debugger.getReason() == null && this.cpu.getCycles() < end) {
+            long tickAt = Scheduler.tickCycle(this.ticks + 1, this.cpuHz);
+            long until = Math.min(tickAt, end);
+
+            this.cpu.run((int) (until - this.cpu.getCycles()));
+
+            if (this.cpu.getCycles() == tickAt) {
+                this.cpu.doTimerTick();
+                this.display.render();
+                this.ticks++;
+            }
+        }
+
+        if (this.debugger.getReason() != null) {
+            this.out.println(this.debugger.getReason());
+        } else if (count > 1) {
+            this.out.println(String.format("ran %d instructions", this.cpu.getCycles() - start));
+        }
+
+        this.where();
+    }
+
+    private void where() {
+        int pc = this.cpu.dumpPC();
+        int opcode = this.opcodeAt(pc);
+        this.out.println(String.format("%03x  %04x  %s", pc, opcode, Disassembler.disassemble(opcode)));
+    }
+
+    private void regs() {
+        int[] registers = this.cpu.dumpRegisters();
+        StringBuilder line = new StringBuilder();
+
+        for (int r = 0; r < 16; ++r) {
+            line.append(String.format("v%x=%02x ", r, registers[r]));
+
+            if (r == 7 || r == 15) {
+                this.out.println(line.toString().trim());
+                line.setLength(0);
+            }
+        }
+
+        SaveState state = this.cpu.save();
+        line.append(String.format("pc=%03x i=%03x dt=%02x st=%02x keys=%04x cycle=%d stack=[",
+            state.pc, state.i, state.delayTimer, state.soundTimer, state.keys, this.cpu.getCycles()));
+
+        for (int level = 0; level <= state.sp; ++level) {
+            line.append(String.format(level == 0 ? "%03x" : " %03x", state.stack[level]));
+        }
+
+        this.out.println(line.append("]"));
+    }
+
+    private void dump(int start, int length) {
+        for (int row = start; row < Math.min(start + length, Memory.SIZE); row += 16) {
+            StringBuilder line = new StringBuilder(String.format("%03x ", row));
+
+            for (int pos = row; pos < Math.min(row + 16, Math.min(start + length, Memory.SIZE)); ++pos) {
+                line.append(String.format(" %02x", this.ram.getByte(pos)));
+            }
+
+            this.out.println(line);
+        }
+    }
+
+    private int opcodeAt(int pc) {
+        return (this.ram.getByte(pc) << 8) | this.ram.getByte((pc + 1) % Memory.SIZE);
+    }
+
+    private void help() {
+        this.out.println("b ADDR            break when pc reaches ADDR");
+        this.out.println("w ADDR            stop after an instruction writes ADDR");
+        this.out.println("when vX|i OP N    stop when the comparison becomes true (OP is == != < <= > >=)");
+        this.out.println("del b|w ADDR      remove a breakpoint or watchpoint");
+        this.out.println("del c N           remove condition N");
+        this.out.println("clear, info       remove everything, list everything");
+        this.out.println("s [N]             step N instructions");
+        this.out.println("n                 step, running over a call");
+        this.out.println("f                 run until the current subroutine returns");
+        this.out.println("c [FRAMES]        continue (for a minute of emulated time by default)");
+        this.out.println("r                 registers, timers and stack");
+        this.out.println("x ADDR [N]        dump N bytes of memory");
+        this.out.println("keys MASK         hold keys (hex mask, bit n for key n)");
+        this.out.println("q                 quit");
+        this.out.println("addresses and values are hex");
+    }
+}
@@ -0,0 +1,306 @@
+package uk.clavier.chiplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+// pc breakpoints, write watchpoints and register/I conditions. like the profiler it wraps
+// the handler table, and watchpoints listen to memory, but only while something is armed:
+// with nothing set the cpu runs its normal table (or the jit) and memory has no extra listener.
+// DebugConsole drives it
+public class Debugger implements MemoryListener {
+    // stops when the comparison goes from false to true, so continuing doesn't stop straight away
+    static class Condition {
+        // 0-f for a register, I for I
+        static final int I = 16;
+
+        final int register;
+        final String comparison;
+        final int value;
+        boolean held;
+
+        Condition(int register, String comparison, int value) {
+            this.register = register;
+            this.comparison = comparison;
+            this.value = value;
+        }
+
+        boolean test(CPU cpu) {
+            int actual = this.register == I ? cpu.dumpI() : cpu.dumpRegisters()[this.register];
+
+            switch (this.comparison) {
+                case "==": return actual == this.value;
+                case "!=": return actual != this.value;
+                case "<": return actual < this.value;
+                case "<=": return actual <= this.value;
+                case ">": return actual > this.value;
+                default: return actual >= this.value;
+            }
+        }
+
+        static boolean isComparison(String comparison) {
+            switch (comparison) {
+                case "==": case "!=": case "<": case "<=": case ">": case ">=":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public String toString() {
+            if (this.register == I) {
+                return String.format("i %s %03x", this.comparison, this.value);
+            }
+
+            return String.format("v%x %s %02x", this.register, this.comparison, this.value);
+        }
+    }
+
+    private final CPU cpu;
+    private final Memory ram;
+
+    private final boolean[] breakpoints;
+    private final boolean[] watchpoints;
+    private int breakpointCount;
+    private int watchpointCount;
+    private final List<Condition> conditions;
+
+    // one off stop for step over/out: the pc to stop at once the stack is back down to targetSp.
+    // set for the next run only, a run that stops somewhere else forgets it
+    private int pendingPc;
+    private int pendingSp;
+    private int targetPc;
+    private int targetSp;
+
+    // the instruction a run starts on, which doesn't stop it (it's usually the breakpoint we're on)
+    private int resumePc;
+
+    private boolean executing;
+    private int watchHit;
+
+    // why the last run stopped, null when it didn't
+    private String reason;
+
+    private boolean attached;
+    private boolean listening;
+
+    public Debugger(CPU cpu, Memory ram) {
+        this.cpu = cpu;
+        this.ram = ram;
+        this.breakpoints = new boolean[Memory.SIZE];
+        this.watchpoints = new boolean[Memory.SIZE];
+        this.conditions = new ArrayList<Condition>();
+        this.pendingPc = -1;
+        this.targetPc = -1;
+        this.resumePc = -1;
+        this.watchHit = -1;
+    }
+
+    public boolean setBreakpoint(int pc, boolean set) {
+        if (this.breakpoints[pc] == set) {
+            return false;
+        }
+
+        this.breakpoints[pc] = set;
+        this.breakpointCount += set ? 1 : -1;
+        return true;
+    }
+
+    public boolean setWatchpoint(int pos, boolean set) {
+        if (this.watchpoints[pos] == set) {
+            return false;
+        }
+
+        this.watchpoints[pos] = set;
+        this.watchpointCount += set ? 1 : -1;
+        return true;
+    }
+
+    public void addCondition(int register, String comparison, int value) {
+        this.conditions.add(new Condition(register, comparison, value));
+    }
+
+    public boolean removeCondition(int index) {
+        if (index < 0 || index >= this.conditions.size()) {
+            return false;
+        }
+
+        this.conditions.remove(index);
+        return true;
+    }
+
+    public void clear() {
+        Arrays.fill(this.breakpoints, false);
+        Arrays.fill(this.watchpoints, false);
+        this.breakpointCount = 0;
+        this.watchpointCount = 0;
+        this.conditions.clear();
+    }
+
+    public List<Integer> getBreakpoints() {
+        return addresses(this.breakpoints);
+    }
+
+    public List<Integer> getWatchpoints() {
+        return addresses(this.watchpoints);
+    }
+
+    public List<Condition> getConditions() {
+        return this.conditions;
+    }
+
+    private static List<Integer> addresses(boolean[] set) {
+        List<Integer> addresses = new ArrayList<Integer>();
+
+        for (int pos = 0; pos < set.length; ++pos) {
+            if (set[pos]) {
+                addresses.add(pos);
+            }
+        }
+
+        return addresses;
+    }
+
+    // the next run stops when it gets back to pc with the stack at sp
+    public void stopAt(int pc, int sp) {
+        this.pendingPc = pc;
+        this.pendingSp = sp;
+    }
+
+    public String getReason() {
+        return this.reason;
+    }
+
+    // call before every run. attaches to the cpu and memory if anything could stop it,
+    // detaches if nothing can so the run goes at full speed
+    public void arm() {
+        this.reason = null;
+        this.targetPc = this.pendingPc;
+        this.targetSp = this.pendingSp;
+        this.pendingPc = -1;
+        this.resumePc = this.cpu.dumpPC();
+        this.executing = false;
+        this.watchHit = -1;
+
+        for (Condition condition : this.conditions) {
+            condition.held = condition.test(this.cpu);
+        }
+
+        boolean checking = this.breakpointCount > 0 || this.watchpointCount > 0
+            || !this.conditions.isEmpty() || this.targetPc >= 0;
+
+        if (checking != this.attached) {
+            this.cpu.setDebugger(checking ? this : null);
+            this.attached = checking;
+        }
+
+        boolean listening = this.watchpointCount > 0;
+
+        if (listening != this.listening) {
+            if (listening) {
+                this.ram.addListener(this);
+            } else {
+                this.ram.removeListener(this);
+            }
+
+            this.listening = listening;
+        }
+    }
+
+    // done with the session, leaves the cpu as if there was never a debugger
+    public void detach() {
+        this.clear();
+        this.pendingPc = -1;
+        this.arm();
+    }
+
+    CPU.Op[] instrument(CPU.Op[] table) {
+        CPU.Op[] checking = new CPU.Op[table.length];
+        IdentityHashMap<CPU.Op, CPU.Op> wrappers = new IdentityHashMap<CPU.Op, CPU.Op>();
+
+        for (int opcode = 0; opcode < table.length; ++opcode) {
+            CPU.Op op = table[opcode];
+            CPU.Op wrapper = wrappers.get(op);
+
+            if (wrapper == null) {
+                wrapper = (cpu, code) -> {
+                    if (this.before(cpu)) {
+                        cpu.stopBefore();
+                        return;
+                    }
+
+                    this.executing = true;
+                    op.exec(cpu, code);
+                    this.executing = false;
+
+                    if (this.after(cpu)) {
+                        cpu.stopAfter();
+                    }
+                };
+
+                wrappers.put(op, wrapper);
+            }
+
+            checking[opcode] = wrapper;
+        }
+
+        return checking;
+    }
+
+    private boolean before(CPU cpu) {
+        int pc = cpu.dumpPC() - 2;
+
+        if (pc == this.resumePc) {
+            this.resumePc = -1;
+            return false;
+        }
+
+        this.resumePc = -1;
+
+        if (pc == this.targetPc && cpu.dumpSp() == this.targetSp) {
+            this.targetPc = -1;
+            this.reason = String.format("stopped at %03x", pc);
+            return true;
+        }
+
+        if (this.breakpoints[pc]) {
+            this.reason = String.format("breakpoint at %03x", pc);
+            return true;
+        }
+
+        return false;
+    }
+
+    private boolean after(CPU cpu) {
+        boolean stop = false;
+
+        if (this.watchHit >= 0) {
+            this.reason = String.format("write to %03x", this.watchHit);
+            this.watchHit = -1;
+            stop = true;
+        }
+
+        for (Condition condition : this.conditions) {
+            boolean held = condition.test(cpu);
+
+            if (held && !condition.held && !stop) {
+                this.reason = "condition " + condition;
+                stop = true;
+            }
+
+            condition.held = held;
+        }
+
+        return stop;
+    }
+
+    // only writes made by an instruction count, not rewinds or resets
+    @Override
+    public void written(int pos) {
+        if (this.executing && this.watchpoints[pos] && this.watchHit < 0) {
+            this.watchHit = pos;
+        }
+    }
+}
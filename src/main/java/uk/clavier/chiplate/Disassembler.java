@@ -0,0 +1,63 @@
+package uk.clavier.chiplate;
+
+// turns opcodes back into readable instructions (cowgod's mnemonics) for reports and traces
+public class Disassembler {
+    private Disassembler() {
+    }
+
+    public static String disassemble(int opcode) {
+        if (!CPU.isValid(opcode)) {
+            return String.format("db   %02x, %02x", opcode >> 8, opcode & 0xFF);
+        }
+
+        int x = (opcode >> 8) & 0xF;
+        int y = (opcode >> 4) & 0xF;
+        int n = opcode & 0xF;
+        int nn = opcode & 0xFF;
+        int nnn = opcode & 0xFFF;
+
+        switch (opcode >> 12) {
+            case 0x0:
+                if (opcode == 0x00E0) return "cls";
+                if (opcode == 0x00EE) return "ret";
+                return String.format("sys  %03x", nnn);
+            case 0x1: return String.format("jp   %03x", nnn);
+            case 0x2: return String.format("call %03x", nnn);
+            case 0x3: return String.format("se   v%x, %02x", x, nn);
+            case 0x4: return String.format("sne  v%x, %02x", x, nn);
+            case 0x5: return String.format("se   v%x, v%x", x, y);
+            case 0x6: return String.format("ld   v%x, %02x", x, nn);
+            case 0x7: return String.format("add  v%x, %02x", x, nn);
+            case 0x8:
+                switch (n) {
+                    case 0x0: return String.format("ld   v%x, v%x", x, y);
+                    case 0x1: return String.format("or   v%x, v%x", x, y);
+                    case 0x2: return String.format("and  v%x, v%x", x, y);
+                    case 0x3: return String.format("xor  v%x, v%x", x, y);
+                    case 0x4: return String.format("add  v%x, v%x", x, y);
+                    case 0x5: return String.format("sub  v%x, v%x", x, y);
+                    case 0x6: return String.format("shr  v%x, v%x", x, y);
+                    case 0x7: return String.format("subn v%x, v%x", x, y);
+                    default: return String.format("shl  v%x, v%x", x, y);
+                }
+            case 0x9: return String.format("sne  v%x, v%x", x, y);
+            case 0xA: return String.format("ld   i, %03x", nnn);
+            case 0xB: return String.format("jp   v0, %03x", nnn);
+            case 0xC: return String.format("rnd  v%x, %02x", x, nn);
+            case 0xD: return String.format("drw  v%x, v%x, %x", x, y, n);
+            case 0xE: return String.format(nn == 0x9E ? "skp  v%x" : "sknp v%x", x);
+            default:
+                switch (nn) {
+                    case 0x07: return String.format("ld   v%x, dt", x);
+                    case 0x0A: return String.format("ld   v%x, k", x);
+                    case 0x15: return String.format("ld   dt, v%x", x);
+                    case 0x18: return String.format("ld   st, v%x", x);
+                    case 0x1E: return String.format("add  i, v%x", x);
+                    case 0x29: return String.format("ld   f, v%x", x);
+                    case 0x33: return String.format("ld   b, v%x", x);
+                    case 0x55: return String.format("ld   [i], v%x", x);
+                    default: return String.format("ld   v%x, [i]", x);
+                }
+        }
+    }
+}
@@ -1,48 +1,100 @@
 package uk.clavier.chiplate;
 
-import org.lwjgl.BufferUtils;
-
-import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class Display {
-    private ByteBuffer buffer;
-    private Renderer renderer;
+    // one long per row, bit 63 is the leftmost pixel
+    private long[] rows;
+    private FrameSink sink;
+
+    // bit n set when row n changed since the last present
+    private int dirtyRows;
 
-    public Display(Renderer renderer) {
-        this.buffer = BufferUtils.createByteBuffer(64 * 32);
-        this.renderer = renderer;
+    public Display(FrameSink sink) {
+        this.rows = new long[32];
+        this.sink = sink;
+        this.dirtyRows = 0;
     }
 
     public boolean setPixel(int x, int y, byte value) {
-        boolean unset = false;
-        int index = x + (y * 64);
-        int currentPixel = buffer.get(index);
+        long bit = (long) (value & 1) << (63 - x);
+        boolean unset = (this.rows[y] & bit) != 0;
 
-        int toDraw = value ^ currentPixel;
+        this.rows[y] ^= bit;
 
-        if (toDraw == 0 && currentPixel == 1) {
-            unset = true;
+        if (bit != 0) {
+            this.dirtyRows |= 1 << y;
         }
 
-        this.buffer.put(index, (byte) toDraw);
-
         return unset;
     }
 
+    // xors a sprite in a whole row at a time, anything past the right or
+    // bottom edge is clipped. returns true if any lit pixel got turned off
+    public boolean drawSprite(Memory ram, int address, int x, int y, int height) {
+        boolean collision = false;
+
+        for (int j = 0; j < height && y + j < 32; ++j) {
+            long row = this.rows[y + j];
+
+            if (Instructions.drawRow(this.rows, y + j, ram.getByte(address + j), x)) {
+                collision = true;
+            }
+
+            if (this.rows[y + j] != row) {
+                this.dirtyRows |= 1 << (y + j);
+            }
+        }
+
+        return collision;
+    }
+
     public void clear() {
-        this.buffer.position(0);
+        for (int y = 0; y < 32; ++y) {
+            if (this.rows[y] != 0) {
+                this.rows[y] = 0;
+                this.dirtyRows |= 1 << y;
+            }
+        }
+    }
 
-        // buffer.clear() doesn't actually clear buffer
-        // so fill with 0s
-        // probably fast
-        for (int i = 0; i < 64 * 32; ++i) {
-            this.buffer.put((byte) 0);
+    public long[] copyRows() {
+        return this.rows.clone();
+    }
+
+    // replaces the whole screen, e.g. when restoring a save state
+    public void loadRows(long[] rows) {
+        System.arraycopy(rows, 0, this.rows, 0, 32);
+        this.dirtyRows = -1;
+    }
+
+    public void setRow(int y, long row) {
+        if (this.rows[y] != row) {
+            this.rows[y] = row;
+            this.dirtyRows |= 1 << y;
         }
+    }
 
-        this.buffer.position(0);
+    public long getRow(int y) {
+        return this.rows[y];
     }
 
-    public void render() {
-        this.renderer.render(this.buffer);
+    public int getDirtyRows() {
+        return this.dirtyRows;
+    }
+
+    public boolean sameFrame(Display other) {
+        return Arrays.equals(this.rows, other.rows);
+    }
+
+    // only hands the frame on if something was drawn since the last one, returns whether it did
+    public boolean render() {
+        if (this.dirtyRows == 0) {
+            return false;
+        }
+
+        this.sink.present(this.rows);
+        this.dirtyRows = 0;
+        return true;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,9 @@
+package uk.clavier.chiplate;
+
+// anything a finished frame can be handed to, so the display
+// doesn't need to know whether there's a window behind it.
+// frames are 32 rows of 64 pixels packed msb first, and only
+// get presented when something on screen changed
+public interface FrameSink {
+    void present(long[] rows);
+}
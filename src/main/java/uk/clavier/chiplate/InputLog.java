@@ -0,0 +1,186 @@
+package uk.clavier.chiplate;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+// everything needed to play a session back exactly: the rng seed, the clock rate,
+// every change to the held keys against the cycle it landed on, and a checksum of where it ended up.
+// the cpu itself is deterministic given those, so a replay that doesn't hit the same
+// checksum means something has broken determinism
+public class InputLog {
+    private static final int MAGIC = 0x4338494E; // "C8IN"
+    // 2: events carry the mask of held keys. version 1 checksums were over the old
+    // state layout so those logs can't be checked any more
+    private static final int VERSION = 2;
+
+    private final long seed;
+    private final int cpuHz;
+    private final long program;
+
+    private long[] cycles;
+    private int[] keys;
+    private int count;
+
+    private long endCycle;
+    private long checksum;
+
+    public InputLog(long seed, int cpuHz, byte[] program) {
+        this(seed, cpuHz, crc(program));
+    }
+
+    private InputLog(long seed, int cpuHz, long program) {
+        this.seed = seed;
+        this.cpuHz = cpuHz;
+        this.program = program;
+
+        this.cycles = new long[64];
+        this.keys = new int[64];
+        this.count = 0;
+    }
+
+    public long getSeed() {
+        return this.seed;
+    }
+
+    public int getCpuHz() {
+        return this.cpuHz;
+    }
+
+    public int getEvents() {
+        return this.count;
+    }
+
+    public long getCycle(int event) {
+        return this.cycles[event];
+    }
+
+    public int getKeys(int event) {
+        return this.keys[event];
+    }
+
+    public long getEndCycle() {
+        return this.endCycle;
+    }
+
+    public long getChecksum() {
+        return this.checksum;
+    }
+
+    public boolean matchesProgram(byte[] program) {
+        return crc(program) == this.program;
+    }
+
+    // called in cycle order from the emulation thread
+    public void record(long cycle, int keys) {
+        if (this.count == this.cycles.length) {
+            this.cycles = Arrays.copyOf(this.cycles, this.count * 2);
+            this.keys = Arrays.copyOf(this.keys, this.count * 2);
+        }
+
+        this.cycles[this.count] = cycle;
+        this.keys[this.count] = keys;
+        this.count++;
+    }
+
+    // marks where the recording stopped and what the machine looked like there
+    public void finish(long cycle, CPU cpu) {
+        this.endCycle = cycle;
+        this.checksum = checksum(cpu);
+    }
+
+    // crc of the whole flattened machine state
+    public static long checksum(CPU cpu) {
+        byte[] flat = new byte[SaveState.FLAT_SIZE];
+        cpu.flatten(flat);
+        return crc(flat);
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    // events are stored as varint cycle deltas, key presses mostly land
+    // a few thousand cycles apart so that's two bytes each plus the key mask
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(this.seed);
+        out.writeInt(this.cpuHz);
+        out.writeInt((int) this.program);
+        out.writeInt(this.count);
+
+        long last = 0;
+
+        for (int n = 0; n < this.count; ++n) {
+            writeVarint(out, this.cycles[n] - last);
+            out.writeShort(this.keys[n]);
+            last = this.cycles[n];
+        }
+
+        writeVarint(out, this.endCycle - last);
+        out.writeInt((int) this.checksum);
+    }
+
+    public static InputLog read(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not an input log");
+        }
+
+        int version = in.readUnsignedByte();
+
+        if (version != VERSION) {
+            throw new IOException("Unsupported input log version " + version);
+        }
+
+        long seed = in.readLong();
+        int cpuHz = in.readInt();
+        long program = in.readInt() & 0xFFFFFFFFL;
+        int count = in.readInt();
+
+        if (count < 0) {
+            throw new IOException("Corrupt input log, " + count + " events");
+        }
+
+        InputLog log = new InputLog(seed, cpuHz, program);
+        long cycle = 0;
+
+        for (int n = 0; n < count; ++n) {
+            cycle += readVarint(in);
+            log.record(cycle, in.readUnsignedShort());
+        }
+
+        log.endCycle = cycle + readVarint(in);
+        log.checksum = in.readInt() & 0xFFFFFFFFL;
+
+        return log;
+    }
+
+    private static void writeVarint(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        out.writeByte((int) value);
+    }
+
+    private static long readVarint(DataInput in) throws IOException {
+        long value = 0;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("Corrupt input log, varint too long");
+    }
+}
@@ -0,0 +1,130 @@
+package uk.clavier.chiplate;
+
+// what each instruction does, written once and shared by the table core's handlers and the
+// lockstep engine. the two keep their state differently, so everything here works on plain
+// arrays: registers are v[r] to v[r + 15], which is the cpu's own array from 0 or one
+// machine's slice of the engine's flat one. fetching, the pc, the stack and memory stay with
+// whoever calls these
+public class Instructions {
+    private Instructions() {
+    }
+
+    // 3xnn, 4xnn, 5xy0, 9xy0: whether to skip the next instruction
+
+    static boolean skipEqImm(int[] v, int r, int x, int nn) {
+        return v[r + x] == nn;
+    }
+
+    static boolean skipNeImm(int[] v, int r, int x, int nn) {
+        return v[r + x] != nn;
+    }
+
+    static boolean skipEqReg(int[] v, int r, int x, int y) {
+        return v[r + x] == v[r + y];
+    }
+
+    static boolean skipNeReg(int[] v, int r, int x, int y) {
+        return v[r + x] != v[r + y];
+    }
+
+    // 6xnn, 7xnn
+
+    static void loadImm(int[] v, int r, int x, int nn) {
+        v[r + x] = nn;
+    }
+
+    static void addImm(int[] v, int r, int x, int nn) {
+        v[r + x] = (v[r + x] + nn) & 0xFF; // byte wrap, vf untouched
+    }
+
+    // 8xy0 to 8xye
+
+    static void move(int[] v, int r, int x, int y) {
+        v[r + x] = v[r + y];
+    }
+
+    static void or(int[] v, int r, int x, int y) {
+        v[r + x] |= v[r + y];
+    }
+
+    static void and(int[] v, int r, int x, int y) {
+        v[r + x] &= v[r + y];
+    }
+
+    static void xor(int[] v, int r, int x, int y) {
+        v[r + x] ^= v[r + y];
+    }
+
+    // vf is written first so that when x is f the result wins
+    static void add(int[] v, int r, int x, int y) {
+        int res = v[r + x] + v[r + y];
+
+        v[r + 0xF] = res > 255 ? 1 : 0;
+        v[r + x] = res & 0xFF;
+    }
+
+    static void sub(int[] v, int r, int x, int y) {
+        int vx = v[r + x];
+        int vy = v[r + y];
+
+        v[r + 0xF] = vx < vy ? 0 : 1;
+        v[r + x] = (vx - vy) & 0xFF;
+    }
+
+    static void subn(int[] v, int r, int x, int y) {
+        int vx = v[r + x];
+        int vy = v[r + y];
+
+        v[r + 0xF] = vy < vx ? 0 : 1;
+        v[r + x] = (vy - vx) & 0xFF;
+    }
+
+    // falseShift is the chip-48 quirk most roms expect: shift vx in place and ignore vy
+    static void shr(int[] v, int r, int x, int y, boolean falseShift) {
+        int src = v[r + (falseShift ? x : y)];
+
+        v[r + 0xF] = src & 1;
+        v[r + x] = src >> 1;
+    }
+
+    static void shl(int[] v, int r, int x, int y, boolean falseShift) {
+        int src = v[r + (falseShift ? x : y)];
+
+        v[r + 0xF] = (src >> 7) & 1;
+        v[r + x] = (src << 1) & 0xFF;
+    }
+
+    // cxnn, random is the next 32 bits from the machine's Rng
+    static void rand(int[] v, int r, int x, int nn, int random) {
+        v[r + x] = random & nn;
+    }
+
+    // ex9e, exa1. vx can be anything up to 0xff, only 0-f are keys
+    static boolean isHeld(int keys, int key) {
+        return key < 16 && (keys & (1 << key)) != 0;
+    }
+
+    // fx0a once something's down: with more than one the lowest numbered wins
+    static void waitKey(int[] v, int r, int x, int keys) {
+        v[r + x] = Integer.numberOfTrailingZeros(keys);
+    }
+
+    // fx33, digit 0 is the hundreds
+    static int bcdDigit(int value, int digit) {
+        switch (digit) {
+            case 0: return value / 100;
+            case 1: return (value / 10) % 10;
+            default: return value % 10;
+        }
+    }
+
+    // one row of dxyn: lines the sprite byte up with the left edge then shifts it across,
+    // the unsigned shift drops whatever falls off the right. true on a collision
+    static boolean drawRow(long[] rows, int row, int sprite, int x) {
+        long bits = ((long) sprite << 56) >>> x;
+        long old = rows[row];
+
+        rows[row] = old ^ bits;
+        return (old & bits) != 0;
+    }
+}
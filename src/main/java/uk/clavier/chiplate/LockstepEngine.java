@@ -0,0 +1,541 @@
+package uk.clavier.chiplate;
+
+import java.util.Arrays;
+
+// runs n copies of one rom in lockstep with all their state in flat arrays instead of
+// one object graph per machine. every step fetches each machine's next opcode, buckets
+// the machines by opcode, then runs each bucket as one tight loop, so a thousand
+// machines sitting on the same instruction cost one dispatch instead of a thousand.
+// what each instruction does comes from Instructions, same as CPU's table core,
+// a faulted machine just stops stepping
+public class LockstepEngine {
+    private static final int RAM_SIZE = Memory.SIZE;
+    private static final int STACK_DEPTH = CPU.STACK_DEPTH;
+
+    private final int count;
+    private final boolean falseShift;
+
+    private final int[] registers;
+    private final int[] index;
+    private final int[] pc;
+    private final int[] sp;
+    private final int[] stack;
+    private final int[] delayTimer;
+    private final int[] soundTimer;
+    private final int[] keys;
+    private final long[] rng;
+    private final byte[] ram;
+    private final long[] screen;
+    private final CPUFault[] faults;
+
+    // per step scratch, reused so stepping allocates nothing
+    private final int[] opcodes;
+    private final int[] members;
+    private final int[] groupOf;
+    private final int[] groupStamp;
+    private final int[] groupOpcode;
+    private final int[] groupStart;
+    private final int[] groupFill;
+    private int stamp;
+
+    private long steps;
+    private long groups;
+    private long cycles;
+
+    public LockstepEngine(byte[] program, int count, long firstSeed, boolean falseShift) {
+        this.count = count;
+        this.falseShift = falseShift;
+
+        this.registers = new int[count * 16];
+        this.index = new int[count];
+        this.pc = new int[count];
+        this.sp = new int[count];
+        this.stack = new int[count * STACK_DEPTH];
+        this.delayTimer = new int[count];
+        this.soundTimer = new int[count];
+        this.keys = new int[count];
+        this.rng = new long[count];
+        this.ram = new byte[count * RAM_SIZE];
+        this.screen = new long[count * 32];
+        this.faults = new CPUFault[count];
+
+        this.opcodes = new int[count];
+        this.members = new int[count];
+        this.groupOf = new int[0x10000];
+        this.groupStamp = new int[0x10000];
+        this.groupOpcode = new int[count];
+        this.groupStart = new int[count + 1];
+        this.groupFill = new int[count];
+        this.stamp = 0;
+
+        // build one machine's memory through Memory so the font and load address stay in one place
+        Memory image = new Memory();
+        image.loadProgram(program);
+
+        for (int m = 0; m < count; ++m) {
+            for (int pos = 0; pos < RAM_SIZE; ++pos) {
+                this.ram[m * RAM_SIZE + pos] = (byte) image.getByte(pos);
+            }
+
+            this.pc[m] = 0x200;
+            this.sp[m] = -1;
+            this.keys[m] = 0;
+            // same generator as the cpu so a machine here matches a CPU with the same seed
+            this.rng[m] = Rng.scramble(firstSeed + m);
+        }
+    }
+
+    public int getCount() {
+        return this.count;
+    }
+
+    // bit n for key n, same as CPU.setKeys
+    public void setKeys(int machine, int keys) {
+        this.keys[machine] = keys & 0xFFFF;
+    }
+
+    public CPUFault getFault(int machine) {
+        return this.faults[machine];
+    }
+
+    public long getSteps() {
+        return this.steps;
+    }
+
+    // how many distinct opcode buckets were dispatched, cycles / groups is the
+    // average number of machines sharing each dispatch
+    public long getGroups() {
+        return this.groups;
+    }
+
+    // instructions executed across every machine that hadn't faulted
+    public long getCycles() {
+        return this.cycles;
+    }
+
+    // runs frames of 9 steps and a timer tick, like Machine.run
+    public void runFrames(long frames) {
+        for (long f = 0; f < frames; ++f) {
+            for (int n = 0; n < 9; ++n) {
+                this.step();
+            }
+
+            this.tick();
+        }
+    }
+
+    public void tick() {
+        for (int m = 0; m < this.count; ++m) {
+            if (this.delayTimer[m] > 0) {
+                this.delayTimer[m]--;
+            }
+
+            if (this.soundTimer[m] > 0) {
+                this.soundTimer[m]--;
+            }
+        }
+    }
+
+    public void step() {
+        // new stamp invalidates last step's opcode -> group mapping without clearing 64k entries
+        this.stamp++;
+        int groupCount = 0;
+
+        // fetch and count machines per opcode
+        for (int m = 0; m < this.count; ++m) {
+            if (this.faults[m] != null) {
+                this.opcodes[m] = -1;
+                continue;
+            }
+
+            int p = this.pc[m];
+
+            if (p + 1 >= RAM_SIZE) {
+                this.faults[m] = new CPUFault("Memory access out of range", p, 0);
+                this.opcodes[m] = -1;
+                continue;
+            }
+
+            int base = m * RAM_SIZE;
+            int opcode = ((this.ram[base + p] & 0xFF) << 8) | (this.ram[base + p + 1] & 0xFF);
+            this.opcodes[m] = opcode;
+            this.pc[m] = p + 2;
+
+            if (this.groupStamp[opcode] != this.stamp) {
+                this.groupStamp[opcode] = this.stamp;
+                this.groupOf[opcode] = groupCount;
+                this.groupOpcode[groupCount] = opcode;
+                this.groupFill[groupCount] = 0;
+                groupCount++;
+            }
+
+            this.groupFill[this.groupOf[opcode]]++;
+        }
+
+        // lay the groups out back to back in members
+        int offset = 0;
+
+        for (int g = 0; g < groupCount; ++g) {
+            this.groupStart[g] = offset;
+            offset += this.groupFill[g];
+            this.groupFill[g] = this.groupStart[g];
+        }
+
+        this.groupStart[groupCount] = offset;
+
+        for (int m = 0; m < this.count; ++m) {
+            int opcode = this.opcodes[m];
+
+            if (opcode >= 0) {
+                this.members[this.groupFill[this.groupOf[opcode]]++] = m;
+            }
+        }
+
+        for (int g = 0; g < groupCount; ++g) {
+            this.execute(this.groupOpcode[g], this.groupStart[g], this.groupStart[g + 1]);
+        }
+
+        this.steps++;
+        this.groups += groupCount;
+        this.cycles += offset;
+    }
+
+    private void fault(int m, String message, int opcode) {
+        this.faults[m] = new CPUFault(message, this.pc[m] - 2, opcode);
+    }
+
+    // runs one opcode for members[from..to), the switch is taken once per group
+    private void execute(int opcode, int from, int to) {
+        int[] v = this.registers;
+        int[] members = this.members;
+        int x = (opcode >> 8) & 0xF;
+        int y = (opcode >> 4) & 0xF;
+        int n = opcode & 0xF;
+        int nn = opcode & 0xFF;
+        int nnn = opcode & 0xFFF;
+
+        if (!CPU.isValid(opcode)) {
+            for (int k = from; k < to; ++k) {
+                this.fault(members[k], (opcode >> 12) == 0 ? "0NNN called" : "Unknown instruction", opcode);
+            }
+
+            return;
+        }
+
+        switch (opcode >> 12) {
+            case 0x0:
+                if (opcode == 0x00E0) {
+                    for (int k = from; k < to; ++k) {
+                        int m = members[k];
+                        Arrays.fill(this.screen, m * 32, m * 32 + 32, 0);
+                    }
+                } else if (opcode == 0x00EE) {
+                    for (int k = from; k < to; ++k) {
+                        int m = members[k];
+
+                        if (this.sp[m] < 0) {
+                            this.fault(m, "Return with empty stack", opcode);
+                        } else {
+                            this.pc[m] = this.stack[m * STACK_DEPTH + this.sp[m]--];
+                        }
+                    }
+                } else {
+                    for (int k = from; k < to; ++k) {
+                        this.fault(members[k], "0NNN called", opcode);
+                    }
+                }
+
+                return;
+
+            case 0x1:
+                for (int k = from; k < to; ++k) {
+                    this.pc[members[k]] = nnn;
+                }
+
+                return;
+
+            case 0x2:
+                for (int k = from; k < to; ++k) {
+                    int m = members[k];
+
+                    if (this.sp[m] == STACK_DEPTH - 1) {
+                        this.fault(m, "Stack overflow", opcode);
+                    } else {
+                        this.stack[m * STACK_DEPTH + ++this.sp[m]] = this.pc[m];
+                        this.pc[m] = nnn;
+                    }
+                }
+
+                return;
+
+            case 0x3:
+                for (int k = from; k < to; ++k) {
+                    int m = members[k];
+                    this.pc[m] += Instructions.skipEqImm(v, m * 16, x, nn) ? 2 : 0;
+                }
+
+                return;
+
+            case 0x4:
+                for (int k = from; k < to; ++k) {
+                    int m = members[k];
+                    this.pc[m] += Instructions.skipNeImm(v, m * 16, x, nn) ? 2 : 0;
+                }
+
+                return;
+
+            case 0x5:
+                for (int k = from; k < to; ++k) {
+                    int m = members[k];
+                    this.pc[m] += Instructions.skipEqReg(v, m * 16, x, y) ? 2 : 0;
+                }
+
+                return;
+
+            case 0x6:
+                for (int k = from; k < to; ++k) {
+                    Instructions.loadImm(v, members[k] * 16, x, nn);
+                }
+
+                return;
+
+            case 0x7:
+                for (int k = from; k < to; ++k) {
+                    Instructions.addImm(v, members[k] * 16, x, nn);
+                }
+
+                return;
+
+            case 0x8:
+                this.executeAlu(n, x, y, from, to);
+                return;
+
+            case 0x9:
+                for (int k = from; k < to; ++k) {
+                    int m = members[k];
+                    this.pc[m] += Instructions.skipNeReg(v, m * 16, x, y) ? 2 : 0;
+                }
+
+                return;
+
+            case 0xA:
+                for (int k = from; k < to; ++k) {
+                    this.index[members[k]] = nnn;
+                }
+
+                return;
+
+            case 0xB:
+                for (int k = from; k < to; ++k) {
+                    int m = members[k];
+                    this.pc[m] = nnn + v[m * 16];
+                }
+
+                return;
+
+            case 0xC:
+                for (int k = from; k < to; ++k) {
+                    int m = members[k];
+                    long state = Rng.advance(this.rng[m]);
+
+                    this.rng[m] = state;
+                    Instructions.rand(v, m * 16, x, nn, Rng.output(state));
+                }
+
+                return;
+
+            case 0xD:
+                for (int k = from; k < to; ++k) {
+                    this.draw(members[k], x, y, n, opcode);
+                }
+
+                return;
+
+            case 0xE:
+                for (int k = from; k < to; ++k) {
+                    int m = members[k];
+                    boolean held = Instructions.isHeld(this.keys[m], v[m * 16 + x]);
+                    this.pc[m] += held == (nn == 0x9E) ? 2 : 0;
+                }
+
+                return;
+
+            case 0xF:
+                this.executeMisc(nn, x, from, to, opcode);
+                return;
+        }
+    }
+
+    // one loop per operation, the switch stays outside it
+    private void executeAlu(int n, int x, int y, int from, int to) {
+        int[] v = this.registers;
+        int[] members = this.members;
+
+        switch (n) {
+            case 0x0:
+                for (int k = from; k < to; ++k) {
+                    Instructions.move(v, members[k] * 16, x, y);
+                }
+                break;
+            case 0x1:
+                for (int k = from; k < to; ++k) {
+                    Instructions.or(v, members[k] * 16, x, y);
+                }
+                break;
+            case 0x2:
+                for (int k = from; k < to; ++k) {
+                    Instructions.and(v, members[k] * 16, x, y);
+                }
+                break;
+            case 0x3:
+                for (int k = from; k < to; ++k) {
+                    Instructions.xor(v, members[k] * 16, x, y);
+                }
+                break;
+            case 0x4:
+                for (int k = from; k < to; ++k) {
+                    Instructions.add(v, members[k] * 16, x, y);
+                }
+                break;
+            case 0x5:
+                for (int k = from; k < to; ++k) {
+                    Instructions.sub(v, members[k] * 16, x, y);
+                }
+                break;
+            case 0x6:
+                for (int k = from; k < to; ++k) {
+                    Instructions.shr(v, members[k] * 16, x, y, this.falseShift);
+                }
+                break;
+            case 0x7:
+                for (int k = from; k < to; ++k) {
+                    Instructions.subn(v, members[k] * 16, x, y);
+                }
+                break;
+            case 0xE:
+                for (int k = from; k < to; ++k) {
+                    Instructions.shl(v, members[k] * 16, x, y, this.falseShift);
+                }
+                break;
+        }
+    }
+
+    private void executeMisc(int nn, int x, int from, int to, int opcode) {
+        int[] v = this.registers;
+        int[] members = this.members;
+
+        for (int k = from; k < to; ++k) {
+            int m = members[k];
+            int r = m * 16;
+            int base = m * RAM_SIZE;
+            int i = this.index[m];
+
+            switch (nn) {
+                case 0x07:
+                    v[r + x] = this.delayTimer[m];
+                    break;
+                case 0x0A:
+                    if (this.keys[m] == 0) {
+                        this.pc[m] -= 2;
+                    } else {
+                        Instructions.waitKey(v, r, x, this.keys[m]);
+                    }
+                    break;
+                case 0x15:
+                    this.delayTimer[m] = v[r + x];
+                    break;
+                case 0x18:
+                    this.soundTimer[m] = v[r + x];
+                    break;
+                case 0x1E:
+                    this.index[m] = i + v[r + x];
+                    break;
+                case 0x29:
+                    this.index[m] = v[r + x] * 5;
+                    break;
+                case 0x33:
+                    if (i + 2 >= RAM_SIZE) {
+                        this.fault(m, "Memory access out of range", opcode);
+                        break;
+                    }
+
+                    for (int digit = 0; digit < 3; ++digit) {
+                        this.ram[base + i + digit] = (byte) Instructions.bcdDigit(v[r + x], digit);
+                    }
+                    break;
+                case 0x55:
+                    if (i + x >= RAM_SIZE) {
+                        this.fault(m, "Memory access out of range", opcode);
+                        break;
+                    }
+
+                    for (int offset = 0; offset <= x; ++offset) {
+                        this.ram[base + i + offset] = (byte) v[r + offset];
+                    }
+                    break;
+                case 0x65:
+                    if (i + x >= RAM_SIZE) {
+                        this.fault(m, "Memory access out of range", opcode);
+                        break;
+                    }
+
+                    for (int offset = 0; offset <= x; ++offset) {
+                        v[r + offset] = this.ram[base + i + offset] & 0xFF;
+                    }
+                    break;
+            }
+        }
+    }
+
+    // the same rows Display.drawSprite draws, out of this machine's slice of the screen
+    private void draw(int m, int x, int y, int height, int opcode) {
+        int r = m * 16;
+        int base = m * RAM_SIZE;
+        int i = this.index[m];
+        int spriteX = this.registers[r + x] % 64;
+        int spriteY = this.registers[r + y] % 32;
+        int collision = 0;
+
+        for (int j = 0; j < height && spriteY + j < 32; ++j) {
+            if (i + j >= RAM_SIZE) {
+                this.fault(m, "Memory access out of range", opcode);
+                return;
+            }
+
+            if (Instructions.drawRow(this.screen, m * 32 + spriteY + j, this.ram[base + i + j] & 0xFF, spriteX)) {
+                collision = 1;
+            }
+        }
+
+        this.registers[r + 0xF] = collision;
+    }
+
+    // checks machine m against a scalar machine, null when they match
+    public String compare(int m, Machine machine) {
+        CPU cpu = machine.getCPU();
+
+        if (this.pc[m] != cpu.dumpPC()) {
+            return String.format("pc %04x != %04x", this.pc[m], cpu.dumpPC());
+        }
+
+        if (this.index[m] != cpu.dumpI()) {
+            return String.format("I %04x != %04x", this.index[m], cpu.dumpI());
+        }
+
+        int[] registers = cpu.dumpRegisters();
+
+        for (int r = 0; r < 16; ++r) {
+            if (this.registers[m * 16 + r] != registers[r]) {
+                return String.format("v%01x %02x != %02x", r, this.registers[m * 16 + r], registers[r]);
+            }
+        }
+
+        for (int y = 0; y < 32; ++y) {
+            if (this.screen[m * 32 + y] != machine.getDisplay().getRow(y)) {
+                return String.format("screen row %d differs", y);
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,116 @@
+package uk.clavier.chiplate;
+
+// one complete headless chip-8: ram, cpu and display with nothing shared
+// with any other machine, so any number of them can run side by side
+public class Machine {
+    public static class Result {
+        private final long cycles;
+        private final long executed;
+        private final long frames;
+        private final long elapsed;
+        private final RuntimeException fault;
+
+        Result(long cycles, long executed, long frames, long elapsed, RuntimeException fault) {
+            this.cycles = cycles;
+            this.executed = executed;
+            this.frames = frames;
+            this.elapsed = elapsed;
+            this.fault = fault;
+        }
+
+        public long getCycles() {
+            return this.cycles;
+        }
+
+        // instructions that actually ran, cycles skipped as idle don't count
+        public long getExecuted() {
+            return this.executed;
+        }
+
+        public long getFrames() {
+            return this.frames;
+        }
+
+        // nanoseconds of host time spent running
+        public long getElapsed() {
+            return this.elapsed;
+        }
+
+        // null if the machine ran its whole budget. a CPUFault when the rom did something
+        // the cpu can't carry on from, anything else means it never got going (a rom
+        // too big to load) or a bug in the emulator
+        public RuntimeException getFault() {
+            return this.fault;
+        }
+    }
+
+    private final Memory ram;
+    private final Display display;
+    private final CPU cpu;
+
+    public Machine(byte[] program, long seed, Core core) {
+        this(program, seed, core, true);
+    }
+
+    public Machine(byte[] program, long seed, Core core, boolean falseShift) {
+        this.ram = new Memory();
+        this.ram.loadProgram(program);
+
+        this.display = new Display(new NullFrameSink());
+        this.cpu = new CPU(this.ram, this.display, falseShift, seed);
+        this.cpu.setCore(core);
+    }
+
+    public CPU getCPU() {
+        return this.cpu;
+    }
+
+    public Display getDisplay() {
+        return this.display;
+    }
+
+    public Memory getMemory() {
+        return this.ram;
+    }
+
+    public SaveState save() {
+        return this.cpu.save();
+    }
+
+    public void restore(SaveState state) {
+        this.cpu.restore(state);
+    }
+
+    // runs up to the cycle budget at full speed, 9 cycles and a timer tick a frame.
+    // stops early on a fault instead of taking anything else down with it
+    public Result run(long maxCycles) {
+        long cycles = 0;
+        long frames = 0;
+        CPUStats before = this.cpu.getStats();
+        long start = System.nanoTime();
+        CPUFault fault = null;
+
+        try {
+            while (cycles < maxCycles) {
+                int count = (int) Math.min(9, maxCycles - cycles);
+                this.cpu.run(count);
+                cycles += count;
+
+                this.cpu.doTimerTick();
+                this.display.render();
+                frames++;
+            }
+        } catch (CPUFault e) {
+            fault = e;
+        } catch (IndexOutOfBoundsException e) {
+            // I or the pc wandered off the end of ram
+            fault = new CPUFault("Memory access out of range", this.cpu.dumpPC(), 0);
+        }
+
+        // the cpu's own count includes the partial frame a fault cut short
+        CPUStats after = this.cpu.getStats();
+
+        return new Result(after.getCycles() - before.getCycles(), after.getExecuted() - before.getExecuted(),
+            frames, System.nanoTime() - start, fault);
+    }
+}
@@ -1,45 +1,202 @@
 package uk.clavier.chiplate;
 
+import java.util.Arrays;
+
 public class Memory {
-    private byte[] ram;
+    public static final int SIZE = 0x1000;
+
+    // ram is split into pages so snapshots can share them, a page is only
+    // copied the first time it's written after a snapshot was taken
+    static final int PAGE_BITS = 8;
+    static final int PAGE_SIZE = 1 << PAGE_BITS;
+    static final int PAGE_COUNT = SIZE / PAGE_SIZE;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    // chip-8 font data
+    // yes this is the best way to do it mom
+    private static final byte[] FONT = new byte[] {
+        (byte) 0xF0, (byte) 0x90, (byte) 0x90, (byte) 0x90, (byte) 0xF0, // 0
+        (byte) 0x20, (byte) 0x60, (byte) 0x20, (byte) 0x20, (byte) 0x70, // 1
+        (byte) 0xF0, (byte) 0x10, (byte) 0xF0, (byte) 0x80, (byte) 0xF0, // 2
+        (byte) 0xF0, (byte) 0x10, (byte) 0xF0, (byte) 0x10, (byte) 0xF0, // 3
+        (byte) 0x90, (byte) 0x90, (byte) 0xF0, (byte) 0x10, (byte) 0x10, // 4
+        (byte) 0xF0, (byte) 0x80, (byte) 0xF0, (byte) 0x10, (byte) 0xF0, // 5
+        (byte) 0xF0, (byte) 0x80, (byte) 0xF0, (byte) 0x90, (byte) 0xF0, // 6
+        (byte) 0xF0, (byte) 0x10, (byte) 0x20, (byte) 0x40, (byte) 0x40, // 7
+        (byte) 0xF0, (byte) 0x90, (byte) 0xF0, (byte) 0x90, (byte) 0xF0, // 8
+        (byte) 0xF0, (byte) 0x90, (byte) 0xF0, (byte) 0x10, (byte) 0xF0, // 9
+        (byte) 0xF0, (byte) 0x90, (byte) 0xF0, (byte) 0x90, (byte) 0x90, // A
+        (byte) 0xE0, (byte) 0x90, (byte) 0xE0, (byte) 0x90, (byte) 0xE0, // B
+        (byte) 0xF0, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0xF0, // C
+        (byte) 0xE0, (byte) 0x90, (byte) 0x90, (byte) 0x90, (byte) 0xE0, // D
+        (byte) 0xF0, (byte) 0x80, (byte) 0xF0, (byte) 0x80, (byte) 0xF0, // E
+        (byte) 0xF0, (byte) 0x80, (byte) 0xF0, (byte) 0x80, (byte) 0x80, // F
+    };
+
+    private byte[][] pages;
+
+    // false when the page is shared with a snapshot and has to be copied before writing
+    private boolean[] owned;
+
+    private MemoryListener[] listeners;
 
     public Memory() {
-        this.ram = new byte[0xFFF];
-
-        // chip-8 font data
-        // yes this is the best way to do it mom
-        byte[] font = new byte[] {
-            (byte) 0xF0, (byte) 0x90, (byte) 0x90, (byte) 0x90, (byte) 0xF0, // 0
-            (byte) 0x20, (byte) 0x60, (byte) 0x20, (byte) 0x20, (byte) 0x70, // 1
-            (byte) 0xF0, (byte) 0x10, (byte) 0xF0, (byte) 0x80, (byte) 0xF0, // 2
-            (byte) 0xF0, (byte) 0x10, (byte) 0xF0, (byte) 0x10, (byte) 0xF0, // 3
-            (byte) 0x90, (byte) 0x90, (byte) 0xF0, (byte) 0x10, (byte) 0x10, // 4
-            (byte) 0xF0, (byte) 0x80, (byte) 0xF0, (byte) 0x10, (byte) 0xF0, // 5
-            (byte) 0xF0, (byte) 0x80, (byte) 0xF0, (byte) 0x90, (byte) 0xF0, // 6
-            (byte) 0xF0, (byte) 0x10, (byte) 0x20, (byte) 0x40, (byte) 0x40, // 7
-            (byte) 0xF0, (byte) 0x90, (byte) 0xF0, (byte) 0x90, (byte) 0xF0, // 8
-            (byte) 0xF0, (byte) 0x90, (byte) 0xF0, (byte) 0x10, (byte) 0xF0, // 9
-            (byte) 0xF0, (byte) 0x90, (byte) 0xF0, (byte) 0x90, (byte) 0x90, // A
-            (byte) 0xE0, (byte) 0x90, (byte) 0xE0, (byte) 0x90, (byte) 0xE0, // B
-            (byte) 0xF0, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0xF0, // C
-            (byte) 0xE0, (byte) 0x90, (byte) 0x90, (byte) 0x90, (byte) 0xE0, // D
-            (byte) 0xF0, (byte) 0x80, (byte) 0xF0, (byte) 0x80, (byte) 0xF0, // E
-            (byte) 0xF0, (byte) 0x80, (byte) 0xF0, (byte) 0x80, (byte) 0x80, // F
-        };
-
-        // load font
-        System.arraycopy(font, 0, this.ram, 0x000, font.length);
+        this.pages = new byte[PAGE_COUNT][PAGE_SIZE];
+        this.owned = new boolean[PAGE_COUNT];
+        Arrays.fill(this.owned, true);
+        this.listeners = new MemoryListener[0];
+
+        // load font (fits in the first page)
+        System.arraycopy(FONT, 0, this.pages[0], 0x000, FONT.length);
     }
 
     public void loadProgram(byte[] program) {
-        System.arraycopy(program, 0, this.ram, 0x200, program.length);
+        checkFits(program);
+
+        for (int n = 0; n < program.length; ++n) {
+            this.setByte(0x200 + n, program[n]);
+        }
+    }
+
+    // back to power on with a different program in: the font, the program and zeros
+    public void reset(byte[] program) {
+        checkFits(program);
+
+        // zero in place, only a page still shared with a snapshot needs a new array
+        for (int page = 0; page < PAGE_COUNT; ++page) {
+            if (this.owned[page]) {
+                Arrays.fill(this.pages[page], (byte) 0);
+            } else {
+                this.pages[page] = new byte[PAGE_SIZE];
+                this.owned[page] = true;
+            }
+        }
+
+        System.arraycopy(FONT, 0, this.pages[0], 0x000, FONT.length);
+
+        for (int n = 0; n < program.length; ++n) {
+            int pos = 0x200 + n;
+            this.pages[pos >> PAGE_BITS][pos & PAGE_MASK] = program[n];
+        }
+
+        this.notifyWritten(0, SIZE);
+    }
+
+    private static void checkFits(byte[] program) {
+        if (program.length > SIZE - 0x200) {
+            throw new IllegalArgumentException("Program is " + program.length + " bytes, only " + (SIZE - 0x200) + " fit");
+        }
+    }
+
+    public void addListener(MemoryListener listener) {
+        MemoryListener[] grown = new MemoryListener[this.listeners.length + 1];
+        System.arraycopy(this.listeners, 0, grown, 0, this.listeners.length);
+        grown[this.listeners.length] = listener;
+
+        this.listeners = grown;
+    }
+
+    public void removeListener(MemoryListener listener) {
+        for (int n = 0; n < this.listeners.length; ++n) {
+            if (this.listeners[n] == listener) {
+                MemoryListener[] shrunk = new MemoryListener[this.listeners.length - 1];
+                System.arraycopy(this.listeners, 0, shrunk, 0, n);
+                System.arraycopy(this.listeners, n + 1, shrunk, n, shrunk.length - n);
+
+                this.listeners = shrunk;
+                return;
+            }
+        }
+    }
+
+    private void notifyWritten(int pos) {
+        for (MemoryListener listener : this.listeners) {
+            listener.written(pos);
+        }
+    }
+
+    private void notifyWritten(int start, int end) {
+        for (MemoryListener listener : this.listeners) {
+            listener.written(start, end);
+        }
     }
 
     public int getByte(int pos) {
-        return Byte.toUnsignedInt(ram[pos]);
+        return Byte.toUnsignedInt(this.pages[pos >> PAGE_BITS][pos & PAGE_MASK]);
     }
 
     public void setByte(int pos, byte data) {
-        ram[pos] = data;
+        int page = pos >> PAGE_BITS;
+
+        if (!this.owned[page]) {
+            this.pages[page] = this.pages[page].clone();
+            this.owned[page] = true;
+        }
+
+        this.pages[page][pos & PAGE_MASK] = data;
+        this.notifyWritten(pos);
+    }
+
+    // copies all of ram into out at pos and returns the position after it. pages stay
+    // owned, unlike a snapshot, so the next writes don't have to copy them
+    int copyTo(byte[] out, int pos) {
+        for (byte[] page : this.pages) {
+            System.arraycopy(page, 0, out, pos, PAGE_SIZE);
+            pos += PAGE_SIZE;
+        }
+
+        return pos;
+    }
+
+    // the reverse of copyTo, reading all of ram from in at pos. pages that already hold the
+    // same bytes are left alone and listeners only hear about the ones that changed
+    int copyFrom(byte[] in, int pos) {
+        for (int page = 0; page < PAGE_COUNT; ++page) {
+            if (!this.holds(page, in, pos)) {
+                if (!this.owned[page]) {
+                    this.pages[page] = new byte[PAGE_SIZE];
+                    this.owned[page] = true;
+                }
+
+                System.arraycopy(in, pos, this.pages[page], 0, PAGE_SIZE);
+                this.notifyWritten(page << PAGE_BITS, (page + 1) << PAGE_BITS);
+            }
+
+            pos += PAGE_SIZE;
+        }
+
+        return pos;
+    }
+
+    private boolean holds(int page, byte[] in, int pos) {
+        byte[] contents = this.pages[page];
+
+        for (int n = 0; n < PAGE_SIZE; ++n) {
+            if (contents[n] != in[pos + n]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // hands out the current pages for a snapshot. nothing is copied, every page
+    // just becomes shared so whichever side writes first makes its own copy
+    byte[][] snapshotPages() {
+        Arrays.fill(this.owned, false);
+        return this.pages.clone();
+    }
+
+    // swaps in a snapshot's pages, again without copying. anything caching
+    // the contents of a page that actually changed gets told about it
+    void restorePages(byte[][] snapshot) {
+        for (int page = 0; page < PAGE_COUNT; ++page) {
+            if (this.pages[page] != snapshot[page]) {
+                this.pages[page] = snapshot[page];
+                this.notifyWritten(page << PAGE_BITS, (page + 1) << PAGE_BITS);
+            }
+        }
+
+        Arrays.fill(this.owned, false);
     }
-}
\ No newline at end of file
+}
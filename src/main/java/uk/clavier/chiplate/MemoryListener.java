@@ -0,0 +1,14 @@
+package uk.clavier.chiplate;
+
+// notified after every write into memory, used by anything that caches
+// what's in ram (decoded instructions etc) to throw away stale copies
+public interface MemoryListener {
+    void written(int pos);
+
+    // everything from start up to end changed at once (a reset or a restore)
+    default void written(int start, int end) {
+        for (int pos = start; pos < end; ++pos) {
+            this.written(pos);
+        }
+    }
+}
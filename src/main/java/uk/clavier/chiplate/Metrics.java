@@ -0,0 +1,346 @@
+package uk.clavier.chiplate;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// runtime counters for a running emulator, exposed as an mbean.
+// every thread that records anything gets its own stripe and writes plain fields in it,
+// nothing is shared or locked on the hot path, the jmx side just sums the stripes when asked
+// (so live values can be a moment stale). with metrics off nothing here is touched at all:
+// instruction counting is done by swapping a counting op table into the cpu, not by a check
+public class Metrics implements MetricsMBean {
+    public static final String NAME = "uk.clavier.chiplate:type=Metrics";
+
+    static final int HISTOGRAM_BUCKETS = 32;
+
+    // rates are worked out over windows of this many timer ticks, a second of emulated time.
+    // the thread that ticks closes each one, reading a rate just returns the last whole window
+    static final int WINDOW_TICKS = 60;
+
+    // keep each stripe's counters off the cache lines of whatever was allocated next to it
+    private static final int PAD = 8;
+
+    public static class Stripe {
+        private final Metrics owner;
+        private final long[] opcodeClasses = new long[16 + PAD * 2];
+        private final long[] presentLatency = new long[HISTOGRAM_BUCKETS + PAD * 2];
+        private final long[] inputLatency = new long[HISTOGRAM_BUCKETS + PAD * 2];
+
+        private long ticks;
+        private long frames;
+        private long uploads;
+        private long uploadNanos;
+
+        private Stripe(Metrics owner) {
+            this.owner = owner;
+        }
+
+        public void tick() {
+            if (++this.ticks % WINDOW_TICKS == 0) {
+                this.owner.closeWindow();
+            }
+        }
+
+        public void presented(long nanos) {
+            this.frames++;
+            this.presentLatency[PAD + bucket(nanos / 1000)]++;
+        }
+
+        // key event to the next frame handed to the renderer
+        public void input(long nanos) {
+            this.inputLatency[PAD + bucket(nanos / 1000)]++;
+        }
+
+        public void uploaded(long nanos) {
+            this.uploads++;
+            this.uploadNanos += nanos;
+        }
+
+        // the cpu's table with every handler wrapped to bump its opcode class first,
+        // one wrapper per distinct handler rather than one per opcode
+        CPU.Op[] instrument(CPU.Op[] table) {
+            CPU.Op[] counting = new CPU.Op[table.length];
+            IdentityHashMap<CPU.Op, CPU.Op> wrappers = new IdentityHashMap<CPU.Op, CPU.Op>();
+            long[] counts = this.opcodeClasses;
+
+            for (int opcode = 0; opcode < table.length; ++opcode) {
+                CPU.Op op = table[opcode];
+                CPU.Op wrapper = wrappers.get(op);
+
+                if (wrapper == null) {
+                    wrapper = (cpu, code) -> {
+                        counts[PAD + (code >>> 12)]++;
+                        op.exec(cpu, code);
+                    };
+
+                    wrappers.put(op, wrapper);
+                }
+
+                counting[opcode] = wrapper;
+            }
+
+            return counting;
+        }
+
+        private void clear() {
+            Arrays.fill(this.opcodeClasses, 0);
+            Arrays.fill(this.presentLatency, 0);
+            Arrays.fill(this.inputLatency, 0);
+            this.ticks = 0;
+            this.frames = 0;
+            this.uploads = 0;
+            this.uploadNanos = 0;
+        }
+    }
+
+    private final List<Stripe> stripes;
+
+    // where the current window started
+    private long windowTime;
+    private long windowInstructions;
+    private long windowTicks;
+    private long windowSprites;
+
+    // the rates over the last whole window
+    private volatile double instructionsPerSecond;
+    private volatile double spritesPerFrame;
+
+    public Metrics() {
+        this.stripes = new CopyOnWriteArrayList<Stripe>();
+        this.windowTime = System.nanoTime();
+    }
+
+    // registers with the platform mbean server, fine to call more than once
+    public static Metrics register() {
+        Metrics metrics = new Metrics();
+
+        try {
+            ObjectName name = new ObjectName(NAME);
+
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+        } catch (JMException e) {
+            System.out.println("Couldn't register metrics: " + e.getMessage());
+        }
+
+        return metrics;
+    }
+
+    // each stripe should only ever be written from one thread
+    public Stripe newStripe() {
+        Stripe stripe = new Stripe(this);
+        this.stripes.add(stripe);
+        return stripe;
+    }
+
+    // log2 microsecond buckets
+    static int bucket(long micros) {
+        return Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    @Override
+    public long getInstructions() {
+        long total = 0;
+
+        for (long count : this.getOpcodeClassCounts()) {
+            total += count;
+        }
+
+        return total;
+    }
+
+    // works out the rates for the window just finished and starts the next
+    private synchronized void closeWindow() {
+        long now = System.nanoTime();
+        long instructions = this.getInstructions();
+        long ticks = this.getTimerTicks();
+        long sprites = this.getOpcodeClassCounts()[0xD];
+
+        this.instructionsPerSecond = (instructions - this.windowInstructions) * 1e9 / Math.max(1, now - this.windowTime);
+        this.spritesPerFrame = ticks == this.windowTicks ? 0 : (double) (sprites - this.windowSprites) / (ticks - this.windowTicks);
+
+        this.windowTime = now;
+        this.windowInstructions = instructions;
+        this.windowTicks = ticks;
+        this.windowSprites = sprites;
+    }
+
+    // over the last whole window of wall time
+    @Override
+    public double getInstructionsPerSecond() {
+        return this.instructionsPerSecond;
+    }
+
+    @Override
+    public long[] getOpcodeClassCounts() {
+        long[] counts = new long[16];
+
+        for (Stripe stripe : this.stripes) {
+            for (int c = 0; c < 16; ++c) {
+                counts[c] += stripe.opcodeClasses[PAD + c];
+            }
+        }
+
+        return counts;
+    }
+
+    @Override
+    public long getTimerTicks() {
+        long total = 0;
+
+        for (Stripe stripe : this.stripes) {
+            total += stripe.ticks;
+        }
+
+        return total;
+    }
+
+    // dxyn executed per 60hz frame over the last whole window
+    @Override
+    public double getSpritesPerFrame() {
+        return this.spritesPerFrame;
+    }
+
+    @Override
+    public long getFramesPresented() {
+        long total = 0;
+
+        for (Stripe stripe : this.stripes) {
+            total += stripe.frames;
+        }
+
+        return total;
+    }
+
+    @Override
+    public long[] getPresentLatencyHistogram() {
+        long[] histogram = new long[HISTOGRAM_BUCKETS];
+
+        for (Stripe stripe : this.stripes) {
+            for (int b = 0; b < HISTOGRAM_BUCKETS; ++b) {
+                histogram[b] += stripe.presentLatency[PAD + b];
+            }
+        }
+
+        return histogram;
+    }
+
+    @Override
+    public long[] getInputLatencyHistogram() {
+        long[] histogram = new long[HISTOGRAM_BUCKETS];
+
+        for (Stripe stripe : this.stripes) {
+            for (int b = 0; b < HISTOGRAM_BUCKETS; ++b) {
+                histogram[b] += stripe.inputLatency[PAD + b];
+            }
+        }
+
+        return histogram;
+    }
+
+    // upper bound of the bucket the percentile falls in
+    private static long percentile(long[] histogram, double fraction) {
+        long total = 0;
+
+        for (long count : histogram) {
+            total += count;
+        }
+
+        long seen = 0;
+
+        for (int b = 0; b < HISTOGRAM_BUCKETS; ++b) {
+            seen += histogram[b];
+
+            if (total > 0 && seen >= total * fraction) {
+                return 1L << b;
+            }
+        }
+
+        return 0;
+    }
+
+    @Override
+    public long getPresentLatencyP50Micros() {
+        return percentile(this.getPresentLatencyHistogram(), 0.5);
+    }
+
+    @Override
+    public long getPresentLatencyP99Micros() {
+        return percentile(this.getPresentLatencyHistogram(), 0.99);
+    }
+
+    @Override
+    public long getInputLatencyP50Micros() {
+        return percentile(this.getInputLatencyHistogram(), 0.5);
+    }
+
+    @Override
+    public long getInputLatencyP99Micros() {
+        return percentile(this.getInputLatencyHistogram(), 0.99);
+    }
+
+    @Override
+    public long getUploads() {
+        long total = 0;
+
+        for (Stripe stripe : this.stripes) {
+            total += stripe.uploads;
+        }
+
+        return total;
+    }
+
+    @Override
+    public double getUploadMicrosAverage() {
+        long uploads = 0;
+        long nanos = 0;
+
+        for (Stripe stripe : this.stripes) {
+            uploads += stripe.uploads;
+            nanos += stripe.uploadNanos;
+        }
+
+        return uploads == 0 ? 0 : nanos / 1000.0 / uploads;
+    }
+
+    // racy against the writers, a count bumped mid clear may survive it
+    @Override
+    public synchronized void reset() {
+        for (Stripe stripe : this.stripes) {
+            stripe.clear();
+        }
+
+        this.windowTime = System.nanoTime();
+        this.windowInstructions = 0;
+        this.windowTicks = 0;
+        this.windowSprites = 0;
+        this.instructionsPerSecond = 0;
+        this.spritesPerFrame = 0;
+    }
+
+    // totals since the start (or the last reset), sprites per frame averaged over all of it
+    @Override
+    public String toString() {
+        long[] counts = this.getOpcodeClassCounts();
+        long ticks = this.getTimerTicks();
+        StringBuilder classes = new StringBuilder();
+
+        for (int c = 0; c < 16; ++c) {
+            if (counts[c] > 0) {
+                classes.append(String.format(" %Xxxx:%d", c, counts[c]));
+            }
+        }
+
+        return String.format("%d instructions, %d ticks, %.2f sprites/frame, opcode classes:%s",
+            this.getInstructions(), ticks, ticks == 0 ? 0 : (double) counts[0xD] / ticks, classes);
+    }
+}
@@ -0,0 +1,29 @@
+package uk.clavier.chiplate;
+
+// what Metrics shows over jmx, standard mbean naming so jconsole/visualvm pick it up
+public interface MetricsMBean {
+    long getInstructions();
+    double getInstructionsPerSecond();
+
+    // one count per top nibble, index 0xD is sprite draws and so on
+    long[] getOpcodeClassCounts();
+
+    long getTimerTicks();
+    double getSpritesPerFrame();
+
+    long getFramesPresented();
+    // bucket n counts presents that took under 2^n microseconds
+    long[] getPresentLatencyHistogram();
+    long getPresentLatencyP50Micros();
+    long getPresentLatencyP99Micros();
+
+    // key event to the next changed frame handed to the renderer, same buckets
+    long[] getInputLatencyHistogram();
+    long getInputLatencyP50Micros();
+    long getInputLatencyP99Micros();
+
+    long getUploads();
+    double getUploadMicrosAverage();
+
+    void reset();
+}
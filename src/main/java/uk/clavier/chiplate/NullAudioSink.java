@@ -0,0 +1,24 @@
+package uk.clavier.chiplate;
+
+// no sound, just keeps count of the beeps for headless runs and checks
+public class NullAudioSink implements AudioSink {
+    private boolean beeping;
+    private long beeps;
+
+    @Override
+    public void setBeeping(boolean beeping) {
+        if (beeping && !this.beeping) {
+            this.beeps++;
+        }
+
+        this.beeping = beeping;
+    }
+
+    public boolean isBeeping() {
+        return this.beeping;
+    }
+
+    public long getBeeps() {
+        return this.beeps;
+    }
+}
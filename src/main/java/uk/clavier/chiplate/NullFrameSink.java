@@ -0,0 +1,19 @@
+package uk.clavier.chiplate;
+
+// headless sink, throws frames away and just counts them
+public class NullFrameSink implements FrameSink {
+    private long frames;
+
+    public NullFrameSink() {
+        this.frames = 0;
+    }
+
+    @Override
+    public void present(long[] rows) {
+        this.frames++;
+    }
+
+    public long getFrames() {
+        return this.frames;
+    }
+}
@@ -0,0 +1,312 @@
+package uk.clavier.chiplate;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// exact count profiler. counts every instruction executed per pc and keeps a call tree
+// by following 2nnn/00ee alongside the cpu's stack, which is enough to work out hot
+// loops (basic blocks), time per subroutine, call edges and flame graph stacks afterwards.
+// like metrics it works by wrapping the handler table, so it costs nothing unless attached
+public class Profiler {
+    private static final int TOP = 20;
+
+    // one node per distinct call path
+    private static class Frame {
+        final int entry;
+        final Frame parent;
+        long self;
+        long calls;
+        Map<Integer, Frame> callees;
+
+        Frame(int entry, Frame parent) {
+            this.entry = entry;
+            this.parent = parent;
+        }
+
+        Frame callee(int entry) {
+            if (this.callees == null) {
+                this.callees = new HashMap<Integer, Frame>();
+            }
+
+            Frame frame = this.callees.get(entry);
+
+            if (frame == null) {
+                frame = new Frame(entry, this);
+                this.callees.put(entry, frame);
+            }
+
+            return frame;
+        }
+
+        String name() {
+            return this.entry < 0 ? "main" : String.format("sub_%03x", this.entry);
+        }
+    }
+
+    private static class Block {
+        final int start;
+        final int length;
+        final long count;
+
+        Block(int start, int length, long count) {
+            this.start = start;
+            this.length = length;
+            this.count = count;
+        }
+
+        long cycles() {
+            return this.count * this.length;
+        }
+    }
+
+    private static class Subroutine {
+        long calls;
+        long self;
+        long inclusive;
+    }
+
+    private final long[] counts;
+    private final Frame root;
+    private Frame current;
+    private long total;
+
+    public Profiler() {
+        this.counts = new long[Memory.SIZE];
+        this.root = new Frame(-1, null);
+        this.current = this.root;
+        this.total = 0;
+    }
+
+    public long getTotal() {
+        return this.total;
+    }
+
+    private void count(int pc) {
+        this.counts[pc]++;
+        this.current.self++;
+        this.total++;
+    }
+
+    private void called(int entry) {
+        this.current = this.current.callee(entry);
+        this.current.calls++;
+    }
+
+    private void returned() {
+        if (this.current.parent != null) {
+            this.current = this.current.parent;
+        }
+    }
+
+    // the handler table with every handler counting first. calls and returns get
+    // their own wrappers that also move through the call tree, but only once they've
+    // gone through, so a faulting call or return leaves the tree where the cpu is
+    CPU.Op[] instrument(CPU.Op[] table) {
+        CPU.Op[] counting = new CPU.Op[table.length];
+        IdentityHashMap<CPU.Op, CPU.Op> wrappers = new IdentityHashMap<CPU.Op, CPU.Op>();
+
+        for (int opcode = 0; opcode < table.length; ++opcode) {
+            CPU.Op op = table[opcode];
+            CPU.Op wrapper = wrappers.get(op);
+
+            if (wrapper == null) {
+                if (opcode >> 12 == 0x2) {
+                    wrapper = (cpu, code) -> {
+                        this.count(cpu.dumpPC() - 2);
+                        op.exec(cpu, code);
+                        this.called(code & 0xFFF);
+                    };
+                } else if (opcode == 0x00EE) {
+                    wrapper = (cpu, code) -> {
+                        this.count(cpu.dumpPC() - 2);
+                        op.exec(cpu, code);
+                        this.returned();
+                    };
+                } else {
+                    wrapper = (cpu, code) -> {
+                        this.count(cpu.dumpPC() - 2);
+                        op.exec(cpu, code);
+                    };
+                }
+
+                wrappers.put(op, wrapper);
+            }
+
+            counting[opcode] = wrapper;
+        }
+
+        return counting;
+    }
+
+    private static int opcodeAt(Memory ram, int pc) {
+        return (ram.getByte(pc) << 8) | ram.getByte((pc + 1) % Memory.SIZE);
+    }
+
+    // straight runs of executed instructions that all ran the same number of times
+    // with nothing in the middle that can branch
+    private List<Block> blocks(Memory ram) {
+        List<Block> blocks = new ArrayList<Block>();
+        int start = -1;
+        int length = 0;
+
+        for (int pc = 0; pc < Memory.SIZE; ++pc) {
+            if (this.counts[pc] == 0) {
+                continue;
+            }
+
+            int last = start + (length - 1) * 2;
+            boolean continues = start >= 0 && pc == last + 2 && this.counts[pc] == this.counts[start]
+                && !BlockTranslator.endsBlock(opcodeAt(ram, last)) && !BlockTranslator.skips(opcodeAt(ram, last));
+
+            if (continues) {
+                length++;
+                continue;
+            }
+
+            if (start >= 0) {
+                blocks.add(new Block(start, length, this.counts[start]));
+            }
+
+            start = pc;
+            length = 1;
+        }
+
+        if (start >= 0) {
+            blocks.add(new Block(start, length, this.counts[start]));
+        }
+
+        return blocks;
+    }
+
+    // recursion only counts towards inclusive time at the outermost level
+    private long collect(Frame frame, Map<Integer, Subroutine> subroutines, Map<String, Long> edges) {
+        long inclusive = frame.self;
+
+        if (frame.callees != null) {
+            for (Frame callee : frame.callees.values()) {
+                String edge = frame.name() + " -> " + callee.name();
+                Long calls = edges.get(edge);
+                edges.put(edge, (calls == null ? 0 : calls) + callee.calls);
+
+                inclusive += this.collect(callee, subroutines, edges);
+            }
+        }
+
+        if (frame.entry >= 0) {
+            Subroutine sub = subroutines.get(frame.entry);
+
+            if (sub == null) {
+                sub = new Subroutine();
+                subroutines.put(frame.entry, sub);
+            }
+
+            sub.calls += frame.calls;
+            sub.self += frame.self;
+
+            boolean recursive = false;
+
+            for (Frame up = frame.parent; up != null; up = up.parent) {
+                recursive |= up.entry == frame.entry;
+            }
+
+            if (!recursive) {
+                sub.inclusive += inclusive;
+            }
+        }
+
+        return inclusive;
+    }
+
+    private double percent(long count) {
+        return this.total == 0 ? 0 : count * 100.0 / this.total;
+    }
+
+    public void report(Memory ram, String name, PrintWriter out) {
+        out.println(String.format("%s: %d instructions", name, this.total));
+
+        List<Integer> pcs = new ArrayList<Integer>();
+
+        for (int pc = 0; pc < Memory.SIZE; ++pc) {
+            if (this.counts[pc] > 0) {
+                pcs.add(pc);
+            }
+        }
+
+        Collections.sort(pcs, (a, b) -> Long.compare(this.counts[b], this.counts[a]));
+
+        out.println();
+        out.println("hottest instructions");
+
+        for (int pc : pcs.subList(0, Math.min(TOP, pcs.size()))) {
+            out.println(String.format("  %03x  %-16s %12d %6.2f%%",
+                pc, Disassembler.disassemble(opcodeAt(ram, pc)), this.counts[pc], this.percent(this.counts[pc])));
+        }
+
+        List<Block> blocks = this.blocks(ram);
+        Collections.sort(blocks, (a, b) -> Long.compare(b.cycles(), a.cycles()));
+
+        out.println();
+        out.println("hottest blocks");
+
+        for (Block block : blocks.subList(0, Math.min(TOP, blocks.size()))) {
+            out.println(String.format("  %03x-%03x  %d runs, %d instructions %6.2f%%",
+                block.start, block.start + block.length * 2 - 2, block.count, block.cycles(), this.percent(block.cycles())));
+
+            for (int k = 0; k < block.length; ++k) {
+                int pc = block.start + k * 2;
+                out.println(String.format("      %03x  %s", pc, Disassembler.disassemble(opcodeAt(ram, pc))));
+            }
+        }
+
+        Map<Integer, Subroutine> subroutines = new HashMap<Integer, Subroutine>();
+        Map<String, Long> edges = new HashMap<String, Long>();
+        this.collect(this.root, subroutines, edges);
+
+        List<Integer> entries = new ArrayList<Integer>(subroutines.keySet());
+        Collections.sort(entries, (a, b) -> Long.compare(subroutines.get(b).inclusive, subroutines.get(a).inclusive));
+
+        out.println();
+        out.println("subroutines                calls         self    inclusive");
+
+        for (int entry : entries) {
+            Subroutine sub = subroutines.get(entry);
+            out.println(String.format("  sub_%03x %18d %12d %12d %6.2f%%",
+                entry, sub.calls, sub.self, sub.inclusive, this.percent(sub.inclusive)));
+        }
+
+        List<String> names = new ArrayList<String>(edges.keySet());
+        Collections.sort(names, (a, b) -> Long.compare(edges.get(b), edges.get(a)));
+
+        out.println();
+        out.println("call edges");
+
+        for (String edge : names) {
+            out.println(String.format("  %-24s %12d", edge, edges.get(edge)));
+        }
+
+        out.flush();
+    }
+
+    // one line per call path with instructions spent in it, what flamegraph.pl and speedscope read
+    public void writeCollapsed(PrintWriter out) {
+        this.writeCollapsed(this.root, this.root.name(), out);
+        out.flush();
+    }
+
+    private void writeCollapsed(Frame frame, String path, PrintWriter out) {
+        if (frame.self > 0) {
+            out.println(path + " " + frame.self);
+        }
+
+        if (frame.callees != null) {
+            for (Frame callee : frame.callees.values()) {
+                this.writeCollapsed(callee, path + ";" + callee.name(), out);
+            }
+        }
+    }
+}
@@ -7,8 +7,7 @@ import org.lwjgl.system.*;
 
 import java.io.IOException;
 import java.nio.*;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
 
 import static org.lwjgl.glfw.Callbacks.*;
 import static org.lwjgl.glfw.GLFW.*;
@@ -22,18 +21,34 @@ enum ShaderType {
     FRAGMENT
 }
 
-public class Renderer {
+public class Renderer implements FrameSink {
     private long window;
     private int vaoId;
     private int vboId;
     private int eboId;
     private int shaderProgram;
     private int texture;
+    // 64 pixels a row packed into two 32 bit words, 256 bytes for the whole screen
+    private static final int WORDS_PER_ROW = 2;
+
+    private IntBuffer upload;
+
+    // what's currently in the texture, to work out which rows need uploading
+    private long[] shown;
+
+    // render thread's metrics stripe, null when off
+    private Metrics.Stripe metrics;
 
     public Renderer(long window) {
         this.window = window;
+        this.upload = BufferUtils.createIntBuffer(WORDS_PER_ROW * 32);
+        this.shown = new long[32];
     }
     
+    public void setMetrics(Metrics.Stripe metrics) {
+        this.metrics = metrics;
+    }
+
     public static long createWindow(int scaleFactor) {
         // this is basically all copied from the LWJGL 3 getting started guide
         // with some fixes and changes
@@ -90,7 +105,7 @@ public class Renderer {
     }
 
 	private String loadShader(ShaderType type) throws IOException {
-        String toRead = "src/shaders/screen.";
+        String toRead = "shaders/screen.";
 
         if (type == ShaderType.VERTEX) {
             toRead += "vert";
@@ -98,7 +113,7 @@ public class Renderer {
             toRead += "frag";
         }
 
-        return new String (Files.readAllBytes(Paths.get(toRead)));
+        return new String(Resources.read(toRead), StandardCharsets.UTF_8);
     }
 
     public void createQuad() {
@@ -134,23 +149,23 @@ public class Renderer {
 
     public void createTexture() {
         // create a base empty texture to update (needed to use the Sub function)
-        ByteBuffer baseTexture = BufferUtils.createByteBuffer(64 * 32);
+        IntBuffer baseTexture = BufferUtils.createIntBuffer(WORDS_PER_ROW * 32);
 
         texture = glGenTextures();
         glBindTexture(GL_TEXTURE_2D, texture);
 
-        // set texture parameteres (clamp to edge, nearest neighbour scaling)
+        // set texture parameteres (clamp to edge, nearest neighbour scaling, which integer textures need anyway)
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
 
-        // generate empty texture
-        glTexImage2D(GL_TEXTURE_2D, 0, GL_RED, 64, 32, 0, GL_RED, GL_UNSIGNED_BYTE, baseTexture);
+        // generate empty texture, one unsigned int texel per 32 pixels, unpacked in the shader
+        glTexImage2D(GL_TEXTURE_2D, 0, GL_R32UI, WORDS_PER_ROW, 32, 0, GL_RED_INTEGER, GL_UNSIGNED_INT, baseTexture);
     }
 
     public void createShaderProgram() throws IOException {
-        // load shaders from file
+        // load shaders from the classpath
         String vertexShaderSource = loadShader(ShaderType.VERTEX);
         String fragShaderSource = loadShader(ShaderType.FRAGMENT);
 
@@ -181,21 +196,86 @@ public class Renderer {
         this.createTexture();
         this.createShaderProgram();
 
-        // set base color (probably not necessary)
+        // start from a black window, later frames only get drawn when something changes
         glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+        glClear(GL_COLOR_BUFFER_BIT);
+        glfwSwapBuffers(window);
+
+        // present skips unchanged frames, so when the window gets uncovered or resized the
+        // system can be left showing garbage. the texture always holds shown, draw it again
+        glfwSetWindowRefreshCallback(window, (win) -> this.redraw());
     }
 
-    public void render(ByteBuffer buffer) {
-        // clear the screen (possibly unnecessary)
-        glClear(GL_COLOR_BUFFER_BIT);
+    private void redraw() {
+        glDrawElements(GL_TRIANGLES, 6, GL_UNSIGNED_INT, 0);
+        glfwSwapBuffers(window);
+    }
+
+    @Override
+    public void present(long[] rows) {
+        long start = this.metrics != null ? System.nanoTime() : 0;
+
+        // find the range of rows that differ from what's on screen
+        int first = -1;
+        int last = -1;
+
+        for (int y = 0; y < 32; ++y) {
+            if (rows[y] != this.shown[y]) {
+                if (first == -1) {
+                    first = y;
+                }
+
+                last = y;
+            }
+        }
+
+        // nothing changed, leave the last frame up and skip the upload, draw and swap
+        if (first == -1) {
+            glfwPollEvents();
+            return;
+        }
+
+        // split just those rows into their two words, the shader does the unpacking
+        for (int y = first; y <= last; ++y) {
+            long row = rows[y];
+            this.shown[y] = row;
+
+            this.upload.put(y * WORDS_PER_ROW, (int) (row >>> 32));
+            this.upload.put(y * WORDS_PER_ROW + 1, (int) row);
+        }
+
+        // update the changed rows of the texture and draw it, the quad covers
+        // the whole window so there's no need to clear first
+        this.upload.position(first * WORDS_PER_ROW);
+        long uploadStart = this.metrics != null ? System.nanoTime() : 0;
+        glTexSubImage2D(GL_TEXTURE_2D, 0, 0, first, WORDS_PER_ROW, last - first + 1, GL_RED_INTEGER, GL_UNSIGNED_INT, this.upload);
+        this.upload.position(0);
+
+        // only the time the driver holds us up for, the copy itself may happen later on the gpu
+        if (this.metrics != null) {
+            this.metrics.uploaded(System.nanoTime() - uploadStart);
+        }
 
-        // update texture with new data and draw it
-        glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, 64, 32, GL_RED, GL_UNSIGNED_BYTE, buffer);
         glDrawElements(GL_TRIANGLES, 6, GL_UNSIGNED_INT, 0);
 
         // swap color buffers, poll events
         glfwSwapBuffers(window);
         glfwPollEvents();
+
+        // from picking the frame up to it being swapped in, vsync wait included
+        if (this.metrics != null) {
+            this.metrics.presented(System.nanoTime() - start);
+        }
+    }
+
+    // nothing new to show, sleep until input comes in or the timeout runs out
+    public void waitEvents(double timeout) {
+        glfwWaitEventsTimeout(timeout);
+    }
+
+    // wakes a render thread blocked in waitEvents, safe to call from any thread
+    public static void wake() {
+        glfwPostEmptyEvent();
     }
 
     public void end() {
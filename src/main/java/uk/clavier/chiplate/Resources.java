@@ -0,0 +1,28 @@
+package uk.clavier.chiplate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+// files bundled into the jar (shaders, the splash rom), so it runs from anywhere
+// and not just from the source checkout
+public class Resources {
+    public static byte[] read(String name) throws IOException {
+        try (InputStream in = Resources.class.getResourceAsStream("/" + name)) {
+            if (in == null) {
+                throw new FileNotFoundException(name + " is missing from the classpath");
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package uk.clavier.chiplate;
+
+import java.util.Arrays;
+
+// bounded history of per frame machine states for rewinding. every keyframeInterval
+// frames a full state is stored, everything in between is stored as the xor against
+// that keyframe, run length encoded (mostly zeros, so usually a few dozen bytes).
+// entries live back to back in one preallocated byte ring and the machine is flattened
+// straight into scratch space and restored straight out of it, so capturing and
+// rewinding allocate nothing. the oldest keyframe
+// (with its deltas) is dropped whenever the byte cap or the frame cap is hit
+public class RewindBuffer {
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 60;
+
+    private final int keyframeInterval;
+    private final int maxFrames;
+    private final byte[] ring;
+
+    // per entry index, oldest entry at head
+    private final int[] offsets;
+    private final int[] lengths;
+    private final int[] keyframeOf;
+    private int head;
+    private int count;
+    private int writePos;
+
+    // raw copy of the newest keyframe, what new deltas get xored against
+    private final byte[] keyframe;
+    private int keyframeEntry;
+
+    // scratch space, and the last keyframe decoded while rewinding
+    private final byte[] current;
+    private final byte[] encoded;
+    private final byte[] decodedKeyframe;
+    private int decodedKeyframeEntry;
+
+    public RewindBuffer(int maxFrames, int maxBytes, int keyframeInterval) {
+        this.keyframeInterval = keyframeInterval;
+        this.maxFrames = maxFrames;
+        this.ring = new byte[maxBytes];
+
+        this.offsets = new int[maxFrames];
+        this.lengths = new int[maxFrames];
+        this.keyframeOf = new int[maxFrames];
+        this.head = 0;
+        this.count = 0;
+        this.writePos = 0;
+
+        this.keyframe = new byte[SaveState.FLAT_SIZE];
+        this.keyframeEntry = -1;
+
+        this.current = new byte[SaveState.FLAT_SIZE];
+        // worst case every byte is a literal, plus the run headers
+        this.encoded = new byte[SaveState.FLAT_SIZE * 2 + 16];
+        this.decodedKeyframe = new byte[SaveState.FLAT_SIZE];
+        this.decodedKeyframeEntry = -1;
+    }
+
+    // forgets all history, keeping the buffers
+    public void clear() {
+        this.head = 0;
+        this.count = 0;
+        this.writePos = 0;
+        this.keyframeEntry = -1;
+        this.decodedKeyframeEntry = -1;
+    }
+
+    public int getFrames() {
+        return this.count;
+    }
+
+    private int entry(int n) {
+        return (this.head + n) % this.maxFrames;
+    }
+
+    // call once per emulated frame
+    public void capture(CPU cpu) {
+        cpu.flatten(this.current);
+
+        int newest = this.count == 0 ? -1 : this.entry(this.count - 1);
+        boolean isKeyframe = this.keyframeEntry == -1 || newest == -1
+            || this.distance(this.keyframeEntry, newest) + 1 >= this.keyframeInterval;
+
+        int length;
+        int start;
+
+        while (true) {
+            length = encode(this.current, isKeyframe ? null : this.keyframe, this.encoded);
+
+            if (length > this.ring.length) {
+                throw new IllegalStateException("Rewind buffer too small for a single frame");
+            }
+
+            // make room in the index and in the ring
+            if (this.count == this.maxFrames) {
+                this.dropOldest();
+            }
+
+            start = this.writePos + length > this.ring.length ? 0 : this.writePos;
+
+            // wrapping round: everything left over from the last lap, from writePos to the
+            // end of the ring, is older than anything at the front so it all goes first
+            if (start != this.writePos) {
+                int lapEnd = this.writePos;
+
+                while (this.count > 0 && this.offsets[this.head] >= lapEnd) {
+                    this.dropOldest();
+                }
+            }
+
+            while (this.count > 0 && this.overlapsOldest(start, length)) {
+                this.dropOldest();
+            }
+
+            // making room dropped the keyframe this delta was against, store a full frame instead
+            if (!isKeyframe && this.count == 0) {
+                isKeyframe = true;
+                continue;
+            }
+
+            break;
+        }
+
+        int slot = this.entry(this.count);
+        System.arraycopy(this.encoded, 0, this.ring, start, length);
+        this.offsets[slot] = start;
+        this.lengths[slot] = length;
+        this.count++;
+        this.writePos = start + length;
+
+        if (isKeyframe) {
+            System.arraycopy(this.current, 0, this.keyframe, 0, SaveState.FLAT_SIZE);
+            this.keyframeEntry = slot;
+        }
+
+        this.keyframeOf[slot] = this.keyframeEntry;
+    }
+
+    // restores the newest captured frame and forgets it, so calling this once per
+    // frame plays the history backwards. false when there's nothing left
+    public boolean stepBack(CPU cpu) {
+        if (this.count == 0) {
+            return false;
+        }
+
+        int slot = this.entry(this.count - 1);
+        int key = this.keyframeOf[slot];
+
+        if (key == slot) {
+            decode(this.ring, this.offsets[slot], this.lengths[slot], null, this.current);
+        } else {
+            if (this.decodedKeyframeEntry != key) {
+                decode(this.ring, this.offsets[key], this.lengths[key], null, this.decodedKeyframe);
+                this.decodedKeyframeEntry = key;
+            }
+
+            decode(this.ring, this.offsets[slot], this.lengths[slot], this.decodedKeyframe, this.current);
+        }
+
+        cpu.unflatten(this.current);
+
+        // hand the space back and make the remaining newest entry current
+        this.count--;
+        this.writePos = this.offsets[slot];
+
+        if (key == slot) {
+            this.decodedKeyframeEntry = -1;
+        }
+
+        if (this.count == 0) {
+            this.keyframeEntry = -1;
+        } else if (this.keyframeEntry != this.keyframeOf[this.entry(this.count - 1)]) {
+            this.keyframeEntry = this.keyframeOf[this.entry(this.count - 1)];
+            decode(this.ring, this.offsets[this.keyframeEntry], this.lengths[this.keyframeEntry], null, this.keyframe);
+        }
+
+        return true;
+    }
+
+    // entries between two slots, oldest first
+    private int distance(int from, int to) {
+        return (to - from + this.maxFrames) % this.maxFrames;
+    }
+
+    private boolean overlapsOldest(int start, int length) {
+        int offset = this.offsets[this.head];
+        return offset < start + length && offset + this.lengths[this.head] > start;
+    }
+
+    // a keyframe takes every delta that depends on it along with it
+    private void dropOldest() {
+        do {
+            if (this.decodedKeyframeEntry == this.head) {
+                this.decodedKeyframeEntry = -1;
+            }
+
+            this.head = (this.head + 1) % this.maxFrames;
+            this.count--;
+        } while (this.count > 0 && this.keyframeOf[this.head] != this.head);
+
+        if (this.count == 0) {
+            this.keyframeEntry = -1;
+            this.writePos = 0;
+        }
+    }
+
+    // xor against base (or as is with no base), then runs of
+    // [zero count][literal count][literals], counts as 7 bit varints
+    private static int encode(byte[] data, byte[] base, byte[] out) {
+        int pos = 0;
+        int n = 0;
+
+        while (n < data.length) {
+            int zeros = 0;
+
+            while (n < data.length && xor(data, base, n) == 0) {
+                zeros++;
+                n++;
+            }
+
+            int literalStart = n;
+
+            while (n < data.length && xor(data, base, n) != 0) {
+                n++;
+            }
+
+            pos = putVarint(out, pos, zeros);
+            pos = putVarint(out, pos, n - literalStart);
+
+            for (int k = literalStart; k < n; ++k) {
+                out[pos++] = (byte) xor(data, base, k);
+            }
+        }
+
+        return pos;
+    }
+
+    private static void decode(byte[] in, int offset, int length, byte[] base, byte[] out) {
+        int pos = offset;
+        int end = offset + length;
+        int n = 0;
+
+        if (base == null) {
+            Arrays.fill(out, (byte) 0);
+        } else {
+            System.arraycopy(base, 0, out, 0, out.length);
+        }
+
+        while (pos < end) {
+            int zeros = 0;
+            int shift = 0;
+            byte b;
+
+            do {
+                b = in[pos++];
+                zeros |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            int literals = 0;
+            shift = 0;
+
+            do {
+                b = in[pos++];
+                literals |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            n += zeros;
+
+            for (int k = 0; k < literals; ++k) {
+                out[n++] ^= in[pos++];
+            }
+        }
+    }
+
+    private static int xor(byte[] data, byte[] base, int n) {
+        return base == null ? data[n] : data[n] ^ base[n];
+    }
+
+    private static int putVarint(byte[] out, int pos, int value) {
+        while (value >= 0x80) {
+            out[pos++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+
+        out[pos++] = (byte) value;
+        return pos;
+    }
+}
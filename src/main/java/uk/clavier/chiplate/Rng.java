@@ -0,0 +1,42 @@
+package uk.clavier.chiplate;
+
+// the same 48 bit lcg as java.util.Random (so seeded runs don't change), but with
+// the state out in the open so it can be saved, restored and stepped in bulk
+public class Rng {
+    private static final long MULTIPLIER = 0x5DEECE66DL;
+    private static final long ADDEND = 0xBL;
+    private static final long MASK = (1L << 48) - 1;
+
+    private long state;
+
+    public Rng(long seed) {
+        this.state = scramble(seed);
+    }
+
+    // seed -> initial state, same as new Random(seed)
+    static long scramble(long seed) {
+        return (seed ^ MULTIPLIER) & MASK;
+    }
+
+    static long advance(long state) {
+        return (state * MULTIPLIER + ADDEND) & MASK;
+    }
+
+    // the 32 bits Random.nextInt() would return for this state
+    static int output(long state) {
+        return (int) (state >>> 16);
+    }
+
+    public int nextInt() {
+        this.state = advance(this.state);
+        return output(this.state);
+    }
+
+    public long getState() {
+        return this.state;
+    }
+
+    public void setState(long state) {
+        this.state = state;
+    }
+}
@@ -0,0 +1,194 @@
+package uk.clavier.chiplate;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+// a complete, immutable machine snapshot. ram pages are shared with the machine
+// (and any other snapshots) until someone writes to them, see Memory
+public class SaveState {
+    private static final int MAGIC = 0x43385353; // "C8SS"
+    // 2: held keys as a 16 bit mask instead of one key
+    private static final int VERSION = 2;
+
+    final byte[][] pages;
+    final int[] registers;
+    final int i;
+    final int[] stack;
+    final int sp;
+    final int pc;
+    final int delayTimer;
+    final int soundTimer;
+    final int keys;
+    final long rng;
+    final long[] screen;
+
+    SaveState(byte[][] pages, int[] registers, int i, int[] stack, int sp, int pc,
+              int delayTimer, int soundTimer, int keys, long rng, long[] screen) {
+        this.pages = pages;
+        this.registers = registers;
+        this.i = i;
+        this.stack = stack;
+        this.sp = sp;
+        this.pc = pc;
+        this.delayTimer = delayTimer;
+        this.soundTimer = soundTimer;
+        this.keys = keys;
+        this.rng = rng;
+        this.screen = screen;
+    }
+
+    public int getPC() {
+        return this.pc;
+    }
+
+    // fixed layout raw form, same size for every state so two of them can be
+    // xored byte for byte (rewind deltas). ram first since it's most of it.
+    // CPU.flatten and CPU.unflatten go straight between it and the live machine
+    static final int FLAT_SIZE = Memory.SIZE + 16 + 2 + 2 + 1 + CPU.STACK_DEPTH * 2 + 1 + 1 + 2 + 8 + 32 * 8;
+
+    static int putShort(byte[] out, int pos, int value) {
+        out[pos] = (byte) (value >> 8);
+        out[pos + 1] = (byte) value;
+        return pos + 2;
+    }
+
+    static int getShort(byte[] in, int pos) {
+        return ((in[pos] & 0xFF) << 8) | (in[pos + 1] & 0xFF);
+    }
+
+    static int putLong(byte[] out, int pos, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out[pos++] = (byte) (value >> shift);
+        }
+
+        return pos;
+    }
+
+    static long getLong(byte[] in, int pos) {
+        long value = 0;
+
+        for (int n = 0; n < 8; ++n) {
+            value = (value << 8) | (in[pos + n] & 0xFF);
+        }
+
+        return value;
+    }
+
+    // compact on disk format: registers and timers as bytes, only the live part of the
+    // stack, and only ram pages that aren't all zero (a bitmask says which are there)
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+
+        for (int r = 0; r < 16; ++r) {
+            out.writeByte(this.registers[r]);
+        }
+
+        out.writeShort(this.i);
+        out.writeShort(this.pc);
+        out.writeByte(this.sp);
+
+        for (int level = 0; level <= this.sp; ++level) {
+            out.writeShort(this.stack[level]);
+        }
+
+        out.writeByte(this.delayTimer);
+        out.writeByte(this.soundTimer);
+        out.writeShort(this.keys);
+        out.writeLong(this.rng);
+
+        for (long row : this.screen) {
+            out.writeLong(row);
+        }
+
+        int present = 0;
+
+        for (int page = 0; page < Memory.PAGE_COUNT; ++page) {
+            if (!isBlank(this.pages[page])) {
+                present |= 1 << page;
+            }
+        }
+
+        out.writeShort(present);
+
+        for (int page = 0; page < Memory.PAGE_COUNT; ++page) {
+            if ((present & (1 << page)) != 0) {
+                out.write(this.pages[page]);
+            }
+        }
+    }
+
+    public static SaveState read(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a save state");
+        }
+
+        int version = in.readUnsignedByte();
+
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported save state version " + version);
+        }
+
+        int[] registers = new int[16];
+
+        for (int r = 0; r < 16; ++r) {
+            registers[r] = in.readUnsignedByte();
+        }
+
+        int i = in.readUnsignedShort();
+        int pc = in.readUnsignedShort();
+        int sp = in.readByte();
+        int[] stack = new int[CPU.STACK_DEPTH];
+
+        if (sp >= CPU.STACK_DEPTH) {
+            throw new IOException("Corrupt save state, stack pointer " + sp);
+        }
+
+        for (int level = 0; level <= sp; ++level) {
+            stack[level] = in.readUnsignedShort();
+        }
+
+        int delayTimer = in.readUnsignedByte();
+        int soundTimer = in.readUnsignedByte();
+        int keys;
+
+        if (version == 1) {
+            // one key or -1 for none
+            int key = in.readByte();
+            keys = key < 0 ? 0 : 1 << key;
+        } else {
+            keys = in.readUnsignedShort();
+        }
+
+        long rng = in.readLong();
+        long[] screen = new long[32];
+
+        for (int y = 0; y < 32; ++y) {
+            screen[y] = in.readLong();
+        }
+
+        int present = in.readUnsignedShort();
+        byte[][] pages = new byte[Memory.PAGE_COUNT][];
+
+        for (int page = 0; page < Memory.PAGE_COUNT; ++page) {
+            pages[page] = new byte[Memory.PAGE_SIZE];
+
+            if ((present & (1 << page)) != 0) {
+                in.readFully(pages[page]);
+            }
+        }
+
+        return new SaveState(pages, registers, i, stack, sp, pc, delayTimer, soundTimer, keys, rng, screen);
+    }
+
+    private static boolean isBlank(byte[] page) {
+        for (byte b : page) {
+            if (b != 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,368 @@
+package uk.clavier.chiplate;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// paces the cpu, the 60hz timers and presenting off the monotonic clock instead of vsync.
+// emulated time is counted in cycles and the timers tick on fixed cycle numbers, so the
+// same run always interleaves cycles, ticks and input the same way however the host
+// keeps up. wall time only decides how far to advance, worked out from one epoch so
+// rounding never accumulates into drift
+public class Scheduler {
+    public static final int TIMER_HZ = 60;
+    public static final int DEFAULT_CPU_HZ = 540;
+    public static final int DEFAULT_PRESENT_HZ = 60;
+
+    // run as fast as the host can go
+    public static final double UNCAPPED = Double.POSITIVE_INFINITY;
+
+    private static final long SECOND = 1_000_000_000L;
+
+    // if we fall further behind than this (window dragged, machine suspended etc)
+    // give up on the lost time rather than fast forwarding through it
+    private static final long MAX_CATCH_UP = SECOND / 4;
+
+    private CPU cpu;
+    private Display display;
+    private int cpuHz;
+    private long presentPeriod;
+
+    // optional history, captured every tick and played back while rewinding
+    private RewindBuffer rewind;
+    private volatile boolean rewinding;
+
+    // input from the input thread is latched here as a mask of held keys and applied
+    // between cycles, so it lands on a known cycle number that can be logged and replayed
+    private final AtomicInteger pendingKeys;
+    private int appliedKeys;
+    private InputLog recorder;
+
+    // when the oldest input not yet handed to the cpu came in (0 if none), and when the
+    // last batch was handed over, for timing input through to the next frame shown
+    private final AtomicLong pendingSince;
+    private long inputSince;
+
+    // set while the emulation thread is parked waiting for a key, so input can wake it
+    private volatile Thread waiter;
+    private boolean idled;
+
+    private Metrics.Stripe metrics;
+
+    // told whenever the beeper might have changed, only written to when it actually has
+    private AudioSink audio;
+    private boolean beeping;
+
+    // emulated seconds per wall clock second, asked for from any thread, picked up on the next update
+    private volatile double requestedSpeed;
+    private double speed;
+
+    private long epoch;
+    private long cycles;
+    private long ticks;
+    private long nextPresent;
+
+    public Scheduler(CPU cpu, Display display, int cpuHz, int presentHz) {
+        this.cpu = cpu;
+        this.display = display;
+        this.cpuHz = cpuHz;
+        this.presentPeriod = SECOND / presentHz;
+
+        this.pendingKeys = new AtomicInteger();
+        this.appliedKeys = 0;
+        this.pendingSince = new AtomicLong();
+
+        this.requestedSpeed = 1;
+        this.speed = 1;
+
+        this.cycles = 0;
+        this.ticks = 0;
+        this.epoch = System.nanoTime();
+        this.nextPresent = this.epoch;
+    }
+
+    // starts the clock over from now for a freshly reset cpu, keeping everything else
+    public void restart(long now) {
+        this.cycles = 0;
+        this.ticks = 0;
+        this.epoch = now;
+        this.nextPresent = now;
+        this.appliedKeys = 0;
+        this.inputSince = 0;
+        this.idled = false;
+
+        // the history belongs to the last rom
+        if (this.rewind != null) {
+            this.rewind.clear();
+        }
+    }
+
+    public void setRewind(RewindBuffer rewind) {
+        this.rewind = rewind;
+    }
+
+    // safe to call from the input thread. without a rewind buffer (recording) it's ignored
+    public void setRewinding(boolean rewinding) {
+        this.rewinding = rewinding;
+        LockSupport.unpark(this.waiter);
+    }
+
+    // a multiple of normal speed, or UNCAPPED. timers keep ticking every 60th of an emulated
+    // second whatever the speed, frames are still presented at presentHz of wall time
+    // so anything faster than 1x just skips frames. safe to call from any thread
+    public void setSpeed(double speed) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("Speed must be positive, got " + speed);
+        }
+
+        this.requestedSpeed = speed;
+        LockSupport.unpark(this.waiter);
+    }
+
+    public double getSpeed() {
+        return this.requestedSpeed;
+    }
+
+    // safe to call from the input thread, key is 0-f
+    public void press(int key) {
+        this.pendingKeys.getAndAccumulate(1 << key, (keys, bit) -> keys | bit);
+        this.inputArrived();
+    }
+
+    // safe to call from the input thread
+    public void release(int key) {
+        this.pendingKeys.getAndAccumulate(1 << key, (keys, bit) -> keys & ~bit);
+        this.inputArrived();
+    }
+
+    // the whole mask at once, bit n for key n. safe to call from the input thread
+    public void setKeys(int keys) {
+        this.pendingKeys.set(keys & 0xFFFF);
+        this.inputArrived();
+    }
+
+    private void inputArrived() {
+        this.pendingSince.compareAndSet(0, System.nanoTime());
+        LockSupport.unpark(this.waiter);
+    }
+
+    // logs every change to the held keys against the cycle it was applied on
+    public void setRecorder(InputLog recorder) {
+        this.recorder = recorder;
+    }
+
+    public void setAudio(AudioSink audio) {
+        this.audio = audio;
+        this.beeping = false;
+        audio.setBeeping(false);
+    }
+
+    // counts timer ticks into the emulation thread's stripe
+    public void setMetrics(Metrics.Stripe metrics) {
+        this.metrics = metrics;
+    }
+
+    public long getCycles() {
+        return this.cycles;
+    }
+
+    // only while there's history to go back through, asking for a rewind
+    // without a buffer mustn't stop the clock or the cpu
+    private boolean isRewinding() {
+        return this.rewind != null && this.rewinding;
+    }
+
+    private boolean isIdle() {
+        return !this.isRewinding() && this.pendingKeys.get() == this.appliedKeys && this.cpu.isWaitingForKey();
+    }
+
+    // the cycle timer tick n lands on
+    static long tickCycle(long tick, int cpuHz) {
+        return tick * cpuHz / TIMER_HZ;
+    }
+
+    // split up so long runs at high clock rates can't overflow
+    private long cyclesIn(long nanos) {
+        return nanos / SECOND * this.cpuHz + nanos % SECOND * this.cpuHz / SECOND;
+    }
+
+    private long nanosFor(long cycles) {
+        return cycles / this.cpuHz * SECOND + cycles % this.cpuHz * SECOND / this.cpuHz;
+    }
+
+    // wall clock time emulated time reaches the given cycle at the current speed
+    private long wallTimeFor(long cycles) {
+        return this.epoch + (long) (this.nanosFor(cycles) / this.speed);
+    }
+
+    // lines the epoch up so emulated time is exactly where it is now
+    private void rebase(long now) {
+        this.epoch = this.speed == UNCAPPED ? now : now - (long) (this.nanosFor(this.cycles) / this.speed);
+    }
+
+    private void runCycles(long count) {
+        while (count > 0) {
+            int chunk = (int) Math.min(count, Integer.MAX_VALUE);
+            this.cpu.run(chunk);
+            count -= chunk;
+        }
+    }
+
+    // runs emulation up to the given cycle, timer ticks interleaved on their cycle numbers
+    public void advanceTo(long target) {
+        long tickAt;
+
+        while ((tickAt = tickCycle(this.ticks + 1, this.cpuHz)) <= target) {
+            if (this.isRewinding()) {
+                // one frame of history back per frame of time, the cpu sits this one out
+                this.rewind.stepBack(this.cpu);
+            } else {
+                this.runCycles(tickAt - this.cycles);
+                this.cpu.doTimerTick();
+
+                if (this.metrics != null) {
+                    this.metrics.tick();
+                }
+
+                if (this.rewind != null) {
+                    this.rewind.capture(this.cpu);
+                }
+            }
+
+            this.cycles = tickAt;
+            this.ticks++;
+        }
+
+        if (target > this.cycles) {
+            if (!this.isRewinding()) {
+                this.runCycles(target - this.cycles);
+            }
+
+            this.cycles = target;
+        }
+
+        // quiet while rewinding, history played backwards doesn't sound like anything
+        boolean beeping = !this.isRewinding() && this.cpu.isBeeping();
+
+        if (this.audio != null && beeping != this.beeping) {
+            this.beeping = beeping;
+            this.audio.setBeeping(beeping);
+        }
+    }
+
+    private void applyInput() {
+        int keys = this.pendingKeys.get();
+        long since = this.pendingSince.getAndSet(0);
+
+        if (since != 0 && this.inputSince == 0) {
+            this.inputSince = since;
+        }
+
+        if (keys != this.appliedKeys) {
+            this.appliedKeys = keys;
+            this.cpu.setKeys(keys);
+
+            if (this.recorder != null) {
+                this.recorder.record(this.cycles, keys);
+            }
+        }
+    }
+
+    // brings emulation up to now then presents if a frame is due
+    public void update(long now) {
+        this.applyInput();
+
+        double speed = this.requestedSpeed;
+
+        // an uncapped rewind would run through the whole history between two frames
+        if (speed == UNCAPPED && this.isRewinding()) {
+            speed = 1;
+        }
+
+        if (speed != this.speed) {
+            // carry on from the same point in emulated time at the new rate
+            this.speed = speed;
+            this.rebase(now);
+        }
+
+        if (this.idled) {
+            // nothing could happen while we were parked, so pick up from now as if no time passed
+            this.idled = false;
+            this.rebase(now);
+            this.nextPresent = now;
+        }
+
+        if (this.speed == UNCAPPED) {
+            // whole timer ticks back to back until it's time to present again
+            long deadline = Math.max(now, this.nextPresent);
+
+            do {
+                this.advanceTo(tickCycle(this.ticks + 1, this.cpuHz));
+                now = System.nanoTime();
+            } while (now < deadline && !this.cpu.isWaitingForKey());
+        } else {
+            long due = this.cyclesIn((long) ((now - this.epoch) * this.speed));
+
+            if (this.nanosFor(due - this.cycles) / this.speed > MAX_CATCH_UP) {
+                // drop the backlog, rebase so emulated time lines up with now
+                this.rebase(now);
+                due = this.cycles;
+            }
+
+            this.advanceTo(due);
+        }
+
+        if (now >= this.nextPresent) {
+            this.present();
+            this.nextPresent += this.presentPeriod;
+
+            // missed a whole frame, present on the regular beat from now on instead of bunching up
+            if (now - this.nextPresent > this.presentPeriod) {
+                this.nextPresent = now + this.presentPeriod;
+            }
+        }
+    }
+
+    private void present() {
+        // input to the first changed frame after it, as far as handing it to the renderer
+        if (this.display.render() && this.inputSince != 0) {
+            if (this.metrics != null) {
+                this.metrics.input(System.nanoTime() - this.inputSince);
+            }
+
+            this.inputSince = 0;
+        }
+    }
+
+    // sleeps until the next timer tick or frame, whichever is sooner. if the rom is
+    // sat in fx0a with no timers running there's nothing to tick, so sleep until a key
+    public void waitForNext() {
+        if (this.isIdle()) {
+            this.waiter = Thread.currentThread();
+
+            // check again now input can see us, a key that landed in between still wakes us
+            if (this.isIdle()) {
+                // whatever got drawn since the last present has to be up while we wait,
+                // which could be a long time. waking up presents again straight away
+                this.present();
+                this.nextPresent = System.nanoTime();
+                LockSupport.park(this);
+                this.idled = true;
+            }
+
+            this.waiter = null;
+            return;
+        }
+
+        if (this.speed == UNCAPPED) {
+            return;
+        }
+
+        long nextTick = this.wallTimeFor(tickCycle(this.ticks + 1, this.cpuHz));
+        long delay = Math.min(nextTick, this.nextPresent) - System.nanoTime();
+
+        if (delay > 0) {
+            LockSupport.parkNanos(delay);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package uk.clavier.chiplate;
+
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+
+// reads the traces Tracer writes, either printing them as text or walking two
+// of them side by side (ours against a reference emulator's) to the first difference
+public class TraceDecoder {
+    // how many matching records to show before a difference
+    private static final int CONTEXT = 8;
+
+    private final DataInput in;
+    private final byte[] raw;
+
+    private long cycle;
+    private int pc;
+    private int opcode;
+    private int i;
+    private int register;
+    private int value;
+
+    public TraceDecoder(DataInput in) throws IOException {
+        if (in.readInt() != Tracer.MAGIC) {
+            throw new IOException("Not a trace");
+        }
+
+        int version = in.readUnsignedByte();
+
+        if (version != Tracer.VERSION) {
+            throw new IOException("Unsupported trace version " + version);
+        }
+
+        this.in = in;
+        this.raw = new byte[Tracer.RECORD_SIZE];
+    }
+
+    // false at the end of the trace
+    public boolean next() throws IOException {
+        try {
+            this.in.readFully(this.raw);
+        } catch (EOFException e) {
+            return false;
+        }
+
+        byte[] raw = this.raw;
+        long cycle = 0;
+
+        // records are little endian
+        for (int n = 7; n >= 0; --n) {
+            cycle = (cycle << 8) | (raw[n] & 0xFF);
+        }
+
+        this.cycle = cycle;
+        this.pc = (raw[8] & 0xFF) | ((raw[9] & 0xFF) << 8);
+        this.opcode = (raw[10] & 0xFF) | ((raw[11] & 0xFF) << 8);
+        this.i = (raw[12] & 0xFF) | ((raw[13] & 0xFF) << 8);
+        this.register = raw[14] & 0xFF;
+        this.value = raw[15] & 0xFF;
+
+        return true;
+    }
+
+    public String format() {
+        String written = this.register == Tracer.NO_REGISTER ? "" : String.format("  v%x=%02x", this.register, this.value);
+
+        return String.format("%10d  %03x  %04x  %-14s  I=%03x%s",
+            this.cycle, this.pc, this.opcode, Disassembler.disassemble(this.opcode), this.i, written);
+    }
+
+    private boolean sameAs(TraceDecoder other) {
+        return this.cycle == other.cycle && this.pc == other.pc && this.opcode == other.opcode
+            && this.i == other.i && this.register == other.register && this.value == other.value;
+    }
+
+    // prints every record, returns how many there were
+    public long print(PrintStream out) throws IOException {
+        long records = 0;
+
+        while (this.next()) {
+            out.println(this.format());
+            records++;
+        }
+
+        return records;
+    }
+
+    // true when both traces hold exactly the same records. otherwise prints the records
+    // leading up to the first difference and the two that disagree
+    public boolean diff(TraceDecoder reference, PrintStream out) throws IOException {
+        String[] context = new String[CONTEXT];
+        long records = 0;
+
+        while (true) {
+            boolean ours = this.next();
+            boolean theirs = reference.next();
+
+            if (!ours && !theirs) {
+                out.println(String.format("%d records, no differences", records));
+                return true;
+            }
+
+            if (ours && theirs && this.sameAs(reference)) {
+                context[(int) (records % CONTEXT)] = this.format();
+                records++;
+                continue;
+            }
+
+            out.println(String.format("first difference at record %d:", records));
+
+            for (long n = Math.max(0, records - CONTEXT); n < records; ++n) {
+                out.println("    " + context[(int) (n % CONTEXT)]);
+            }
+
+            out.println("  < " + (ours ? this.format() : "(end of trace)"));
+            out.println("  > " + (theirs ? reference.format() : "(end of trace)"));
+            return false;
+        }
+    }
+}
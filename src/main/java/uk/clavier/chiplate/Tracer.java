@@ -0,0 +1,222 @@
+package uk.clavier.chiplate;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// execution trace: one fixed size record per instruction goes into a preallocated ring,
+// and a background thread drains the ring into the file. the emulation thread never
+// formats anything or touches the disk, it only blocks if the writer falls a whole ring behind.
+// TraceDecoder turns the file back into text or diffs it against another trace
+public class Tracer {
+    static final int MAGIC = 0x43385452; // "C8TR"
+    static final int VERSION = 1;
+
+    // little endian: cycle (8 bytes), pc, opcode, I (2 each), then the register the
+    // instruction wrote and its new value (1 each), NO_REGISTER when it didn't write one
+    static final int RECORD_SIZE = 16;
+    static final int NO_REGISTER = 0xFF;
+
+    // which register a handler writes, picks the wrapper
+    private static final int WRITES_NONE = 0;
+    private static final int WRITES_X = 1;
+    private static final int WRITES_F = 2;
+
+    // 4MB of records, a few milliseconds of uncapped emulation
+    private static final int CAPACITY = 1 << 18;
+    private static final int MASK = CAPACITY - 1;
+
+    // how long the writer sleeps when it's caught up
+    private static final long IDLE_NANOS = 1000000;
+
+    private final ByteBuffer ring;
+    private final FileChannel channel;
+    private final Thread writer;
+
+    // producer side, only touched by the emulation thread
+    private long head;
+    private long drainedSeen;
+
+    // head as far as the writer is concerned, and how far it has written
+    private final AtomicLong published;
+    private final AtomicLong drained;
+
+    private volatile boolean closing;
+    private volatile IOException failure;
+
+    public Tracer(Path path) throws IOException {
+        this.ring = ByteBuffer.allocateDirect(CAPACITY * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.published = new AtomicLong();
+        this.drained = new AtomicLong();
+
+        ByteBuffer header = ByteBuffer.allocate(5);
+        header.putInt(MAGIC);
+        header.put((byte) VERSION);
+        header.flip();
+
+        while (header.hasRemaining()) {
+            this.channel.write(header);
+        }
+
+        this.writer = new Thread(this::drain, "chiplate-trace");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // wraps every handler to record after it runs. the register an instruction writes
+    // only depends on which handler it is and its x, so that's sorted out here and not per cycle
+    CPU.Op[] instrument(CPU.Op[] table) {
+        CPU.Op[] tracing = new CPU.Op[table.length];
+        IdentityHashMap<CPU.Op, CPU.Op[]> wrappers = new IdentityHashMap<CPU.Op, CPU.Op[]>();
+
+        for (int opcode = 0; opcode < table.length; ++opcode) {
+            CPU.Op op = table[opcode];
+            int kind = writes(opcode);
+            CPU.Op[] kinds = wrappers.get(op);
+
+            if (kinds == null) {
+                kinds = new CPU.Op[3];
+                wrappers.put(op, kinds);
+            }
+
+            if (kinds[kind] == null) {
+                if (kind == WRITES_X) {
+                    kinds[kind] = (cpu, code) -> {
+                        int pc = cpu.dumpPC() - 2;
+                        op.exec(cpu, code);
+                        this.record(cpu, pc, code, (code >> 8) & 0xF);
+                    };
+                } else if (kind == WRITES_F) {
+                    kinds[kind] = (cpu, code) -> {
+                        int pc = cpu.dumpPC() - 2;
+                        op.exec(cpu, code);
+                        this.record(cpu, pc, code, 0xF);
+                    };
+                } else {
+                    kinds[kind] = (cpu, code) -> {
+                        int pc = cpu.dumpPC() - 2;
+                        op.exec(cpu, code);
+                        this.record(cpu, pc, code, NO_REGISTER);
+                    };
+                }
+            }
+
+            tracing[opcode] = kinds[kind];
+        }
+
+        return tracing;
+    }
+
+    // 8xy4 and friends set vf as well, vx is the one recorded (and vf wins when x is f).
+    // fx65 loads v0 to vx, only vx makes it in
+    private static int writes(int opcode) {
+        switch (opcode >> 12) {
+            case 0x6:
+            case 0x7:
+            case 0x8:
+            case 0xC:
+                return WRITES_X;
+            case 0xD:
+                return WRITES_F;
+            case 0xF:
+                int low = opcode & 0xFF;
+                return low == 0x07 || low == 0x0A || low == 0x65 ? WRITES_X : WRITES_NONE;
+            default:
+                return WRITES_NONE;
+        }
+    }
+
+    private void record(CPU cpu, int pc, int opcode, int register) {
+        if (this.head - this.drainedSeen == CAPACITY) {
+            this.waitForRoom();
+        }
+
+        int at = (int) (this.head & MASK) * RECORD_SIZE;
+        long value = register == NO_REGISTER ? 0 : cpu.dumpRegisters()[register];
+
+        // the second half goes in as one long, the same bytes as writing each field in turn
+        this.ring.putLong(at, cpu.getCycles() - 1);
+        this.ring.putLong(at + 8, pc | (long) opcode << 16 | (long) cpu.dumpI() << 32 | (long) register << 48 | value << 56);
+
+        // an ordered store, the writer sees the record before it sees the new head
+        this.published.lazySet(++this.head);
+    }
+
+    private void waitForRoom() {
+        while (this.head - (this.drainedSeen = this.drained.get()) == CAPACITY) {
+            if (this.failure != null) {
+                throw new IllegalStateException("Trace writer failed", this.failure);
+            }
+
+            LockSupport.unpark(this.writer);
+            LockSupport.parkNanos(50000);
+        }
+    }
+
+    private void drain() {
+        ByteBuffer view = this.ring.duplicate();
+        long tail = 0;
+
+        try {
+            while (true) {
+                // read closing before head so the last records always make it out
+                boolean last = this.closing;
+                long end = this.published.get();
+
+                if (tail == end) {
+                    if (last) {
+                        break;
+                    }
+
+                    LockSupport.parkNanos(IDLE_NANOS);
+                    continue;
+                }
+
+                // up to the end of the ring at most, the rest goes on the next pass
+                int from = (int) (tail & MASK);
+                int count = (int) Math.min(end - tail, CAPACITY - from);
+
+                view.limit((from + count) * RECORD_SIZE);
+                view.position(from * RECORD_SIZE);
+
+                while (view.hasRemaining()) {
+                    this.channel.write(view);
+                }
+
+                tail += count;
+                this.drained.lazySet(tail);
+            }
+        } catch (IOException e) {
+            this.failure = e;
+        }
+    }
+
+    public long getRecords() {
+        return this.head;
+    }
+
+    // waits for everything recorded to reach the file
+    public void close() throws IOException {
+        this.closing = true;
+        LockSupport.unpark(this.writer);
+
+        try {
+            this.writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        this.channel.close();
+
+        if (this.failure != null) {
+            throw this.failure;
+        }
+    }
+}
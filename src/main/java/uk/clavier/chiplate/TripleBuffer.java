@@ -0,0 +1,47 @@
+package uk.clavier.chiplate;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// hands finished frames from the emulation thread to the render thread without locking.
+// the writer fills its back buffer and swaps it into the middle slot, the reader swaps
+// its front buffer for the middle one whenever a fresh frame is waiting there.
+// neither side ever waits on the other, the reader just sees the newest complete frame
+public class TripleBuffer implements FrameSink {
+    private static final int INDEX_MASK = 3;
+    private static final int FRESH = 4;
+
+    private final long[][] buffers;
+
+    // index of the shared buffer, plus FRESH if it holds a frame the reader hasn't taken
+    private final AtomicInteger middle;
+
+    // only touched by the writer
+    private int back;
+
+    // only touched by the reader
+    private int front;
+
+    public TripleBuffer() {
+        this.buffers = new long[3][32];
+        this.back = 0;
+        this.middle = new AtomicInteger(1);
+        this.front = 2;
+    }
+
+    // writer side
+    @Override
+    public void present(long[] rows) {
+        System.arraycopy(rows, 0, this.buffers[this.back], 0, rows.length);
+        this.back = this.middle.getAndSet(this.back | FRESH) & INDEX_MASK;
+    }
+
+    // reader side, returns the latest published frame or null if nothing new came in
+    public long[] acquire() {
+        if ((this.middle.get() & FRESH) == 0) {
+            return null;
+        }
+
+        this.front = this.middle.getAndSet(this.front) & INDEX_MASK;
+        return this.buffers[this.front];
+    }
+}
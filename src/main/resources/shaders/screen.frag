@@ -0,0 +1,22 @@
+#version 330 core 
+
+out vec4 color;
+in vec2 texCoord;
+
+// each texel is 32 packed pixels, leftmost pixel in the top bit
+uniform usampler2D screen;
+
+void main() {
+    // work the resolution out from the texture so bigger screens just work
+    ivec2 size = textureSize(screen, 0);
+    ivec2 resolution = ivec2(size.x * 32, size.y);
+    ivec2 pixel = min(ivec2(texCoord * vec2(resolution)), resolution - 1);
+
+    // pick the word the pixel lives in, then the bit within it
+    uint word = texelFetch(screen, ivec2(pixel.x / 32, pixel.y), 0).r;
+    uint bit = (word >> uint(31 - pixel.x % 32)) & 1u;
+
+    // monochrome display
+    float luminance = float(bit);
+    color = vec4(luminance, luminance, luminance, 1.0);
+}
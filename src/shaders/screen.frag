@@ -1,12 +0,0 @@
-#version 330 core 
-
-out vec4 color;
-in vec2 texCoord;
-
-uniform sampler2D screen;
-
-void main() {
-    // monochrome display, just read the red channel
-    float luminance = texture(screen, texCoord).r * 255;
-    color = vec4(luminance, luminance, luminance, 1.0);
-}
\ No newline at end of file
@@ -0,0 +1,106 @@
+package uk.clavier.chiplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class InputLogTest {
+    private static final long SEED = 11;
+    private static final long FRAME = 1000000000L / 60;
+
+    @Test
+    public void replayEndsWhereTheRecordingDid() throws Exception {
+        for (String rom : new String[] {"BRIX", "TETRIS", "INVADERS"}) {
+            CPU recorded = States.machine(rom, Core.TABLE, SEED);
+            InputLog log = record(rom, recorded, 1200);
+            InputLog read = read(write(log));
+
+            assertTrue(rom, log.getEvents() > 0);
+            assertEquals(rom, log.getEvents(), read.getEvents());
+
+            for (int n = 0; n < log.getEvents(); ++n) {
+                assertEquals(rom + " event " + n, log.getCycle(n), read.getCycle(n));
+                assertEquals(rom + " event " + n, log.getKeys(n), read.getKeys(n));
+            }
+
+            assertEquals(rom, log.getEndCycle(), read.getEndCycle());
+            assertTrue(rom, read.matchesProgram(States.rom(rom)));
+
+            for (Core core : Core.values()) {
+                CPU replayed = replay(rom, read, core, true);
+                assertEquals(rom + " on " + core, read.getChecksum(), InputLog.checksum(replayed));
+                States.assertSameState(rom + " on " + core, recorded.save(), replayed.save());
+            }
+        }
+    }
+
+    @Test
+    public void checksumCatchesADifferentRun() throws Exception {
+        InputLog log = read(write(record("BRIX", States.machine("BRIX", Core.TABLE, SEED), 1200)));
+
+        // the same cycles with nothing pressed, which also shows the keys made a difference
+        CPU replayed = replay("BRIX", log, Core.TABLE, false);
+        assertNotEquals(log.getChecksum(), InputLog.checksum(replayed));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsSomethingElse() throws Exception {
+        read(new byte[] {'C', '8', 'S', 'S', 2, 0, 0, 0});
+    }
+
+    // plays frames of the rom through a scheduler on a made up clock, changing the held keys now and then
+    private static InputLog record(String rom, CPU cpu, int frames) throws IOException {
+        Display display = new Display(new NullFrameSink());
+        Scheduler scheduler = new Scheduler(cpu, display, Scheduler.DEFAULT_CPU_HZ, Scheduler.DEFAULT_PRESENT_HZ);
+        InputLog log = new InputLog(SEED, Scheduler.DEFAULT_CPU_HZ, States.rom(rom));
+        Random keys = new Random(rom.hashCode());
+
+        scheduler.setRecorder(log);
+        scheduler.restart(0);
+
+        for (int frame = 1; frame <= frames; ++frame) {
+            if (keys.nextInt(20) == 0) {
+                scheduler.setKeys(keys.nextInt(0x10000) & keys.nextInt(0x10000));
+            }
+
+            scheduler.update(frame * FRAME);
+        }
+
+        log.finish(scheduler.getCycles(), cpu);
+        return log;
+    }
+
+    // the same steps as --replay, optionally leaving the keys out
+    private static CPU replay(String rom, InputLog log, Core core, boolean keys) throws IOException {
+        CPU cpu = States.machine(rom, core, log.getSeed());
+        Scheduler scheduler = new Scheduler(cpu, new Display(new NullFrameSink()), log.getCpuHz(), Scheduler.DEFAULT_PRESENT_HZ);
+
+        for (int n = 0; n < log.getEvents(); ++n) {
+            scheduler.advanceTo(log.getCycle(n));
+
+            if (keys) {
+                cpu.setKeys(log.getKeys(n));
+            }
+        }
+
+        scheduler.advanceTo(log.getEndCycle());
+        return cpu;
+    }
+
+    private static byte[] write(InputLog log) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        log.write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static InputLog read(byte[] log) throws IOException {
+        return InputLog.read(new DataInputStream(new ByteArrayInputStream(log)));
+    }
+}
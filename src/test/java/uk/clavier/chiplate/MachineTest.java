@@ -0,0 +1,82 @@
+package uk.clavier.chiplate;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MachineTest {
+    // a minute of emulated time, long enough for the jit to compile the hot blocks
+    private static final long CYCLES = 9 * 60 * 60;
+
+    private static List<String> roms() {
+        String[] roms = new File("programs").list();
+        Arrays.sort(roms);
+        return Arrays.asList(roms);
+    }
+
+    @Test
+    public void everyCoreEndsInTheSameState() throws Exception {
+        for (String rom : roms()) {
+            Machine reference = new Machine(States.rom(rom), 5, Core.SWITCH);
+            Machine.Result expected = reference.run(CYCLES);
+
+            for (Core core : new Core[] {Core.TABLE, Core.JIT}) {
+                Machine machine = new Machine(States.rom(rom), 5, core);
+                Machine.Result result = machine.run(CYCLES);
+                String where = rom + " on " + core;
+
+                assertEquals(where, expected.getCycles(), result.getCycles());
+                assertEquals(where, expected.getFault() == null, result.getFault() == null);
+                States.assertSameState(where, reference.save(), machine.save());
+            }
+        }
+    }
+
+    // the same again with keys held, so key checks and waits go both ways
+    @Test
+    public void everyCoreFollowsTheKeysTheSame() throws Exception {
+        for (String rom : roms()) {
+            CPU reference = States.machine(rom, Core.SWITCH, 6);
+            CPU table = States.machine(rom, Core.TABLE, 6);
+            CPU jit = States.machine(rom, Core.JIT, 6);
+            Random[] keys = {new Random(6), new Random(6), new Random(6)};
+
+            for (int frame = 0; frame < 60 * 60; ++frame) {
+                States.frame(reference, keys[0]);
+                States.frame(table, keys[1]);
+                States.frame(jit, keys[2]);
+            }
+
+            States.assertSameState(rom + " on TABLE", reference.save(), table.save());
+            States.assertSameState(rom + " on JIT", reference.save(), jit.save());
+        }
+    }
+
+    @Test
+    public void batchFailsOnlyTheMachinesThatCantRun() throws Exception {
+        List<BatchRunner.Job> jobs = new ArrayList<BatchRunner.Job>();
+        jobs.add(new BatchRunner.Job("BRIX", States.rom("BRIX"), 0, CYCLES));
+        jobs.add(new BatchRunner.Job("too big", new byte[Memory.SIZE], 0, CYCLES));
+        // 0000 isn't an instruction
+        jobs.add(new BatchRunner.Job("bad opcode", new byte[2], 0, CYCLES));
+
+        BatchRunner runner = new BatchRunner(2, Core.TABLE);
+        BatchRunner.Report report = runner.run(jobs);
+        runner.shutdown();
+
+        List<Machine.Result> results = report.getResults();
+
+        assertNull(results.get(0).getFault());
+        assertEquals(CYCLES, results.get(0).getCycles());
+        assertTrue(results.get(1).getFault() instanceof IllegalArgumentException);
+        assertTrue(results.get(2).getFault() instanceof CPUFault);
+        assertEquals(2, report.getFaults());
+        assertEquals(report.getTotalExecuted(), results.get(0).getExecuted() + results.get(2).getExecuted());
+    }
+}
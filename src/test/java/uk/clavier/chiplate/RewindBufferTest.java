@@ -0,0 +1,101 @@
+package uk.clavier.chiplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RewindBufferTest {
+    // a few keyframes' worth, so the ring wraps over and over
+    private static final int[] SMALL_BYTES = {8850, 10693, 20000};
+    private static final int MAX_FRAMES = 900;
+
+    @Test
+    public void rewindsEveryFrameOfPlayAfterWrapping() throws Exception {
+        for (int bytes : SMALL_BYTES) {
+            CPU cpu = States.machine("BRIX", Core.TABLE, 1);
+            RewindBuffer rewind = new RewindBuffer(MAX_FRAMES, bytes, RewindBuffer.DEFAULT_KEYFRAME_INTERVAL);
+            List<SaveState> captured = new ArrayList<SaveState>();
+            Random keys = new Random(bytes);
+
+            // backing up part way now and then as well
+            for (int frame = 0; frame < 3000; ++frame) {
+                States.frame(cpu, keys);
+                rewind.capture(cpu);
+                captured.add(cpu.save());
+
+                if (frame % 700 == 699) {
+                    rewindAndCheck(cpu, rewind, captured, 40);
+                }
+            }
+
+            assertTrue(rewind.getFrames() > 0);
+            rewindAndCheck(cpu, rewind, captured, Integer.MAX_VALUE);
+        }
+    }
+
+    // keyframes that change size a lot from one to the next, so a lap can end well short of
+    // the one before and leave its last keyframe's group spanning the wrap
+    @Test
+    public void rewindsEveryFrameWhenFrameSizesVary() throws Exception {
+        for (int interval : new int[] {2, 4, 10}) {
+            for (int bytes : SMALL_BYTES) {
+                Memory ram = new Memory();
+                ram.loadProgram(States.rom("BRIX"));
+                CPU cpu = new CPU(ram, new Display(new NullFrameSink()), true, 1);
+                RewindBuffer rewind = new RewindBuffer(MAX_FRAMES, bytes, interval);
+                List<SaveState> captured = new ArrayList<SaveState>();
+                Random random = new Random(bytes * 31 + interval);
+
+                for (int frame = 0; frame < 2000; ++frame) {
+                    int filled = random.nextInt(3000);
+
+                    for (int n = 0; n < 3000; ++n) {
+                        ram.setByte(0x400 + n, (byte) (n < filled ? 1 + random.nextInt(255) : 0));
+                    }
+
+                    rewind.capture(cpu);
+                    captured.add(cpu.save());
+                }
+
+                rewindAndCheck(cpu, rewind, captured, Integer.MAX_VALUE);
+            }
+        }
+    }
+
+    @Test
+    public void dropsOldestFramesAtTheFrameCap() throws Exception {
+        CPU cpu = States.machine("TETRIS", Core.TABLE, 2);
+        RewindBuffer rewind = new RewindBuffer(100, 1 << 20, 10);
+        List<SaveState> captured = new ArrayList<SaveState>();
+        Random keys = new Random(2);
+
+        for (int frame = 0; frame < 500; ++frame) {
+            States.frame(cpu, keys);
+            rewind.capture(cpu);
+            captured.add(cpu.save());
+        }
+
+        assertTrue(rewind.getFrames() <= 100);
+        rewindAndCheck(cpu, rewind, captured, Integer.MAX_VALUE);
+    }
+
+    // steps back up to frames times, each restored state has to be the one captured
+    // at that point. rewound frames come off captured too so capturing can carry on
+    private static void rewindAndCheck(CPU cpu, RewindBuffer rewind, List<SaveState> captured, int frames) {
+        int held = rewind.getFrames();
+
+        for (int n = 0; n < frames && rewind.stepBack(cpu); ++n) {
+            SaveState expected = captured.remove(captured.size() - 1);
+            States.assertSameState("frame " + captured.size() + " of " + held + " held", expected, cpu.save());
+        }
+
+        if (frames == Integer.MAX_VALUE) {
+            assertEquals(0, rewind.getFrames());
+            assertFalse(rewind.stepBack(cpu));
+        }
+    }
+}
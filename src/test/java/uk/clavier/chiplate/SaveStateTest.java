@@ -0,0 +1,129 @@
+package uk.clavier.chiplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SaveStateTest {
+    @Test
+    public void readsBackWhatItWrote() throws Exception {
+        for (String rom : new String[] {"TETRIS", "BRIX", "INVADERS"}) {
+            CPU cpu = playing(rom, 600);
+            SaveState state = cpu.save();
+
+            States.assertSameState(rom, state, read(write(state)));
+        }
+    }
+
+    @Test
+    public void restoredMachineCarriesOnTheSame() throws Exception {
+        CPU cpu = playing("BRIX", 300);
+        SaveState state = read(write(cpu.save()));
+
+        CPU restored = States.machine("BRIX", Core.TABLE, 99);
+        restored.restore(state);
+
+        Random keys = new Random(4);
+        Random sameKeys = new Random(4);
+
+        for (int frame = 0; frame < 600; ++frame) {
+            States.frame(cpu, keys);
+            States.frame(restored, sameKeys);
+        }
+
+        States.assertSameState("600 frames on", cpu.save(), restored.save());
+    }
+
+    @Test
+    public void readsVersionOne() throws Exception {
+        SaveState state = playing("TETRIS", 200).save();
+
+        // version 1 held a single key, or -1 for none
+        States.assertSameState("key 7", withKeys(state, 1 << 7), read(writeVersionOne(state, 7)));
+        States.assertSameState("no key", withKeys(state, 0), read(writeVersionOne(state, -1)));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsSomethingElse() throws Exception {
+        read(new byte[] {'C', '8', 'I', 'N', 2, 0, 0, 0});
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNewerVersions() throws Exception {
+        byte[] saved = write(playing("TETRIS", 10).save());
+        saved[4] = 99;
+        read(saved);
+    }
+
+    private static CPU playing(String rom, int frames) throws IOException {
+        CPU cpu = States.machine(rom, Core.TABLE, 3);
+        Random keys = new Random(rom.hashCode());
+
+        for (int frame = 0; frame < frames; ++frame) {
+            States.frame(cpu, keys);
+        }
+
+        return cpu;
+    }
+
+    private static byte[] write(SaveState state) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        state.write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static SaveState read(byte[] saved) throws IOException {
+        return SaveState.read(new DataInputStream(new ByteArrayInputStream(saved)));
+    }
+
+    private static SaveState withKeys(SaveState state, int keys) {
+        return new SaveState(state.pages, state.registers, state.i, state.stack, state.sp, state.pc,
+            state.delayTimer, state.soundTimer, keys, state.rng, state.screen);
+    }
+
+    // the layout before held keys became a mask, same as now apart from the one key byte
+    private static byte[] writeVersionOne(SaveState state, int key) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(0x43385353);
+        out.writeByte(1);
+
+        for (int r = 0; r < 16; ++r) {
+            out.writeByte(state.registers[r]);
+        }
+
+        out.writeShort(state.i);
+        out.writeShort(state.pc);
+        out.writeByte(state.sp);
+
+        for (int level = 0; level <= state.sp; ++level) {
+            out.writeShort(state.stack[level]);
+        }
+
+        out.writeByte(state.delayTimer);
+        out.writeByte(state.soundTimer);
+        out.writeByte(key);
+        out.writeLong(state.rng);
+
+        for (long row : state.screen) {
+            out.writeLong(row);
+        }
+
+        // every page, blank or not
+        out.writeShort(0xFFFF);
+
+        for (byte[] page : state.pages) {
+            out.write(page);
+        }
+
+        return bytes.toByteArray();
+    }
+}
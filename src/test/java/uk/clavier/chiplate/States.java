@@ -0,0 +1,58 @@
+package uk.clavier.chiplate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+// shared bits for the tests: machines running the bundled roms, and comparing states
+class States {
+    private States() {
+    }
+
+    static byte[] rom(String name) throws IOException {
+        return Files.readAllBytes(Paths.get("programs", name));
+    }
+
+    static CPU machine(String name, Core core, long seed) throws IOException {
+        Memory ram = new Memory();
+        ram.loadProgram(rom(name));
+
+        CPU cpu = new CPU(ram, new Display(new NullFrameSink()), true, seed);
+        cpu.setCore(core);
+        return cpu;
+    }
+
+    // one frame at the default speed, with keys changing now and then so the rom does something
+    static void frame(CPU cpu, Random keys) {
+        if (keys.nextInt(10) == 0) {
+            cpu.setKeys(keys.nextInt(0x10000) & keys.nextInt(0x10000));
+        }
+
+        cpu.run(Scheduler.DEFAULT_CPU_HZ / 60);
+        cpu.doTimerTick();
+    }
+
+    static void assertSameState(String where, SaveState expected, SaveState actual) {
+        for (int page = 0; page < Memory.PAGE_COUNT; ++page) {
+            assertArrayEquals(where + ": ram page " + page, expected.pages[page], actual.pages[page]);
+        }
+
+        assertArrayEquals(where + ": registers", expected.registers, actual.registers);
+        assertEquals(where + ": i", expected.i, actual.i);
+        assertEquals(where + ": pc", expected.pc, actual.pc);
+        assertEquals(where + ": sp", expected.sp, actual.sp);
+
+        for (int level = 0; level <= expected.sp; ++level) {
+            assertEquals(where + ": stack " + level, expected.stack[level], actual.stack[level]);
+        }
+
+        assertEquals(where + ": delay timer", expected.delayTimer, actual.delayTimer);
+        assertEquals(where + ": sound timer", expected.soundTimer, actual.soundTimer);
+        assertEquals(where + ": keys", expected.keys, actual.keys);
+        assertEquals(where + ": rng", expected.rng, actual.rng);
+        assertArrayEquals(where + ": screen", expected.screen, actual.screen);
+    }
+}